@@ -0,0 +1,114 @@
+package com.company.data;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Class to define how text is broken into tokens before being inserted into or searched in the Trie.
+ * The analyzer works on one code point at a time so the trie can descend while the text is being read,
+ * without creating a String for every word. The same analyzer is applied on inserts and on queries,
+ * so a title and a prefix typed by the user always end up with the same characters.
+ * The stages are:
+ * 1. Tokenize: whitespace (or the delimiters given by the caller) separates tokens.
+ * 2. Case fold: code points are converted to lower case.
+ * 3. Strip punctuation: code points which are not letters or digits are dropped, eg. "Alien:" becomes "alien"
+ * and "Spider-Man" becomes "spiderman".
+ * 4. Stop words: tokens matching a stop word are not inserted. Stop words are not applied to query prefixes
+ * since a prefix is only the beginning of a word.
+ */
+public class Analyzer {
+    /**
+     * Value returned by normalize for code points which are dropped from the token
+     */
+    public static final int STRIP = -1;
+
+    private boolean caseFold;
+    private boolean stripPunctuation;
+    private int[][] stopWords;
+
+    /**
+     * Constructor for the default Analyzer which case folds and strips punctuation, without stop words
+     */
+    public Analyzer() {
+        this(true, true, Collections.<String>emptySet());
+    }
+
+    /**
+     * Constructor for Analyzer
+     * @param caseFold true if code points should be converted to lower case
+     * @param stripPunctuation true if code points which are not letters or digits should be dropped
+     * @param stopWords words which should not be inserted. These are normalized with the same stages.
+     */
+    public Analyzer(boolean caseFold, boolean stripPunctuation, Collection<String> stopWords) {
+        if (stopWords == null) {
+            throw new IllegalArgumentException();
+        }
+        this.caseFold = caseFold;
+        this.stripPunctuation = stripPunctuation;
+        this.stopWords = new int[stopWords.size()][];
+        int index = 0;
+        for (String stopWord : stopWords) {
+            int[] token = new int[stopWord.length()];
+            int length = 0;
+            int offset = 0;
+            while (offset < stopWord.length()) {
+                int codePoint = stopWord.codePointAt(offset);
+                offset += Character.charCount(codePoint);
+                int normalized = normalize(codePoint);
+                if (normalized != STRIP) {
+                    token[length++] = normalized;
+                }
+            }
+            int[] normalizedStopWord = new int[length];
+            System.arraycopy(token, 0, normalizedStopWord, 0, length);
+            this.stopWords[index++] = normalizedStopWord;
+        }
+    }
+
+    /**
+     * Method to check if a code point separates two tokens
+     * @param codePoint to check
+     * @param delimiters characters separating tokens. Should be set to null to separate tokens on whitespace
+     * @return true if the code point ends the current token
+     */
+    public boolean isDelimiter(int codePoint, String delimiters) {
+        if (delimiters == null) {
+            return Character.isWhitespace(codePoint);
+        }
+        return delimiters.indexOf(codePoint) >= 0;
+    }
+
+    /**
+     * Method to apply the case folding and punctuation stages on a code point
+     * @param codePoint to normalize
+     * @return the normalized code point, or STRIP if it should be dropped from the token
+     */
+    public int normalize(int codePoint) {
+        if (stripPunctuation && !Character.isLetterOrDigit(codePoint)) {
+            return STRIP;
+        }
+        return caseFold ? Character.toLowerCase(codePoint) : codePoint;
+    }
+
+    /**
+     * Method to check if a normalized token is a stop word
+     * @param token buffer holding the normalized code points of the token
+     * @param length number of code points in the token
+     * @return true if the token should not be inserted
+     */
+    public boolean isStopWord(int[] token, int length) {
+        for (int[] stopWord : stopWords) {
+            if (stopWord.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && stopWord[i] == token[i]) {
+                i++;
+            }
+            if (i == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
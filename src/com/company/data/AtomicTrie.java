@@ -1,83 +1,180 @@
 package com.company.data;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.function.IntFunction;
 
 /**
  * Class for storing Trie data structure.
  * Insertion in the trie is lock free and is made thread safe by using atomic operations to update
  * trie connections. Inserts allow an integer to be added which are returned as part of queries.
  * When setting up the trie, the character space needs to be defined. Eg. for UTF-8 its 256.
+ * All the text inserted or searched goes through the Analyzer of the trie, code point by code point.
+ * Along with the metadata integer, each leaf records the position of the word in the sentence, so queries can
+ * require words to start the sentence or to be adjacent. Positions count the words inserted, stop words
+ * and empty words are not counted.
  */
 public class AtomicTrie {
     private TrieNode root;
     private int characterSpace;
+    private Analyzer analyzer;
+
+    // Filters allowing at most this many metadata integers are checked against their sentences directly,
+    // which is cheaper than walking every node under the prefix
+    private static int DIRECT_CHECK_LIMIT = 64;
+
+    // Each thread reuses its own buffer for the normalized code points of the current token,
+    // so analyzing a sentence does not allocate a String for every word
+    private static final ThreadLocal<int[]> tokenBuffer = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[64];
+        }
+    };
 
     /**
-     * Constructor for AtomicTrie
+     * Constructor for AtomicTrie with the default Analyzer
      * @param characterSpace defines the character space used for each node in the Trie
      */
     public AtomicTrie(int characterSpace) {
-        if (characterSpace <=0 ) {
+        this(characterSpace, new Analyzer());
+    }
+
+    /**
+     * Constructor for AtomicTrie
+     * @param characterSpace defines the character space used for each node in the Trie
+     * @param analyzer used to tokenize and normalize text on insert and search
+     */
+    public AtomicTrie(int characterSpace, Analyzer analyzer) {
+        if (characterSpace <=0 || analyzer == null) {
             throw new IllegalArgumentException();
         }
         this.characterSpace = characterSpace;
+        this.analyzer = analyzer;
         this.root = new TrieNode(this.characterSpace);
     }
 
     /**
      * This method is used to insert a string into the Trie.
      * This is also marked as public if user wants to insert a single word into the trie.
+     * The word is normalized by the analyzer but not split into tokens.
      * The insert uses atomic operation and hence is thread safe.
      * @param word to be inserted into the Trie
      * @param metadata is an integer value associated with the word
      */
     public void insertWord(String word, int metadata) {
-        int index = 0;
-        TrieNode node = root;
-        while (index < word.length()) {
-            char nextChar = word.charAt(index);
-            if (nextChar > characterSpace) {
-                System.out.println("Not a valid character. Not adding word " + word + " to the trie.");
-                return;
-            }
-            TrieNode nextNode = node.nextCharacter[nextChar].get();
-            if (nextNode == null) {
-                TrieNode newTrieNode = new TrieNode(characterSpace);
-                // Atomically compare and set the next node for this character
-                node.nextCharacter[nextChar].compareAndSet(null, newTrieNode);
+        int[] token = getTokenBuffer(word.length());
+        int length = 0;
+        int offset = 0;
+        while (offset < word.length()) {
+            int codePoint = word.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            int normalized = analyzer.normalize(codePoint);
+            if (normalized != Analyzer.STRIP) {
+                token[length++] = normalized;
             }
-            node = node.nextCharacter[nextChar].get();
-            index++;
         }
-        // Add metadata integer to the vector associated with this node
-        node.metadata.add(metadata);
-        // Mark the last node as Leaf to mark ending of the word.
-        node.isLeaf = true;
+        insertToken(token, length, metadata, 0);
     }
 
     /**
      * Method to allow user to insert all words in a sentence into the trie.
-     * The words are assumed to be delimited by a space.
-     * @param sentence list of words delimited by space
+     * The words are assumed to be delimited by whitespace.
+     * @param sentence list of words delimited by whitespace
      * @param metadata integer value associated with each word in the list of words
      */
     public void insertSentence(String sentence, int metadata) {
-        insertSentence(sentence, " ", metadata);
+        insertSentence(sentence, null, metadata);
     }
 
     /**
      * Method to allow user to insert all words in a sentence into the trie.
      * @param sentence list of words
-     * @param delimiter this separates the words in the sentence
+     * @param delimiter this separates the words in the sentence. If null, words are separated by whitespace
      * @param metadata integer value associated with each word in the list of words
      */
     public void insertSentence(String sentence, String delimiter, int metadata) {
-        StringTokenizer tokenizer = new StringTokenizer(sentence, delimiter);
-        while (tokenizer.hasMoreElements()) {
-            insertWord(tokenizer.nextToken(), metadata);
+        int[] token = getTokenBuffer(sentence.length());
+        int length = 0;
+        int position = 0;
+        int offset = 0;
+        while (offset < sentence.length()) {
+            int codePoint = sentence.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            if (analyzer.isDelimiter(codePoint, delimiter)) {
+                if (insertToken(token, length, metadata, position)) {
+                    position++;
+                }
+                length = 0;
+                continue;
+            }
+            int normalized = analyzer.normalize(codePoint);
+            if (normalized != Analyzer.STRIP) {
+                token[length++] = normalized;
+            }
         }
+        insertToken(token, length, metadata, position);
+    }
+
+    /**
+     * Method to get the token buffer of the calling thread, large enough to hold the given number of code points
+     * @param size number of code points the buffer should hold
+     * @return the token buffer
+     */
+    private static int[] getTokenBuffer(int size) {
+        int[] token = tokenBuffer.get();
+        if (token.length < size) {
+            token = new int[size];
+            tokenBuffer.set(token);
+        }
+        return token;
+    }
+
+    /**
+     * Method to insert a normalized token into the trie. Empty tokens and stop words are ignored.
+     * @param token buffer holding the normalized code points
+     * @param length number of code points in the token
+     * @param metadata is an integer value associated with the token
+     * @param position of the token in the sentence
+     * @return true if the token takes a position in the sentence, even if it could not be inserted
+     */
+    private boolean insertToken(int[] token, int length, int metadata, int position) {
+        if (length == 0 || analyzer.isStopWord(token, length)) {
+            return false;
+        }
+        // Validate the token before touching the trie so invalid words do not leave empty branches behind
+        for (int i = 0; i < length; i++) {
+            if (token[i] >= characterSpace) {
+                System.out.println("Not a valid character. Not adding word " + new String(token, 0, length)
+                        + " to the trie.");
+                return true;
+            }
+        }
+        TrieNode node = root;
+        for (int i = 0; i < length; i++) {
+            int nextChar = token[i];
+            TrieNode nextNode = node.nextCharacter[nextChar].get();
+            if (nextNode == null) {
+                TrieNode newTrieNode = new TrieNode(characterSpace);
+                // Atomically compare and set the next node for this character
+                node.nextCharacter[nextChar].compareAndSet(null, newTrieNode);
+            }
+            node = node.nextCharacter[nextChar].get();
+        }
+        // Add metadata integer and position to the vectors associated with this node.
+        // Both are appended under the same lock so concurrent inserts keep them aligned.
+        synchronized (node.metadata) {
+            node.positions.add(position);
+            node.metadata.add(metadata);
+        }
+        // Mark the last node as Leaf to mark ending of the word.
+        node.isLeaf = true;
+        return true;
     }
 
     /**
@@ -86,41 +183,350 @@ public class AtomicTrie {
      * @return a set of integers corresponding to the metadata at all the matching leaf nodes
      */
     public Set<Integer> searchAll(String prefix) {
+        return searchAll(prefix, null);
+    }
+
+    /**
+     * Method to search for all words in the trie that have the given prefix, keeping only the metadata integers
+     * set in the filter. The prefix is normalized by the analyzer as a single partial word, so stop words are not
+     * applied and a prefix containing a delimiter does not match anything. A non empty prefix made only of stripped
+     * characters, eg. ":", does not match anything either. The filter is applied while walking the leaves, so non
+     * matching metadata never reaches the result set.
+     * @param prefix to search in the trie
+     * @param filter bitmap of metadata integers allowed in the result. Should be set to null to allow all
+     * @return a set of integers corresponding to the metadata at all the matching leaf nodes
+     */
+    public Set<Integer> searchAll(String prefix, BitSet filter) {
+        return searchAll(prefix, filter, null);
+    }
+
+    /**
+     * Method to search for all words in the trie that have the given prefix, keeping only the metadata integers
+     * set in the filter. When the filter allows only a few metadata integers, their sentences are analyzed and
+     * checked against the prefix directly instead of walking the sub trie, so a selective filter makes the search
+     * cheaper.
+     * @param prefix to search in the trie
+     * @param filter bitmap of metadata integers allowed in the result. Should be set to null to allow all
+     * @param sentences looks up the sentence inserted with insertSentence(sentence, metadata) for a metadata
+     *                  integer. Should be set to null to always walk the sub trie
+     * @return a set of integers corresponding to the metadata at all the matching leaf nodes
+     */
+    public Set<Integer> searchAll(String prefix, BitSet filter, IntFunction<String> sentences) {
         int index = 0;
+        int[] normalizedPrefix = new int[prefix.length()];
+        int prefixLength = 0;
         TrieNode node = root;
         Set<Integer> resultMetadata = new HashSet<>();
+        // Nothing can match an empty filter, avoid walking the trie
+        if (filter != null && filter.isEmpty()) {
+            return resultMetadata;
+        }
         while (index < prefix.length()) {
-            char nextChar = prefix.charAt(index);
-            if (node.nextCharacter[nextChar].get() == null) {
+            int codePoint = prefix.codePointAt(index);
+            index += Character.charCount(codePoint);
+            if (analyzer.isDelimiter(codePoint, null)) {
+                return resultMetadata;
+            }
+            int nextChar = analyzer.normalize(codePoint);
+            if (nextChar == Analyzer.STRIP) {
+                continue;
+            }
+            if (nextChar >= characterSpace || node.nextCharacter[nextChar].get() == null) {
                 return resultMetadata;
             } else {
                 node = node.nextCharacter[nextChar].get();
             }
-            index++;
+            normalizedPrefix[prefixLength++] = nextChar;
+        }
+        // Every character was stripped, the prefix cannot match a word
+        if (node == root && prefix.length() > 0) {
+            return resultMetadata;
+        }
+        if (sentences != null && filter != null && filter.cardinality() <= DIRECT_CHECK_LIMIT) {
+            for (int metadata = filter.nextSetBit(0); metadata >= 0; metadata = filter.nextSetBit(metadata + 1)) {
+                if (sentenceHasPrefix(sentences.apply(metadata), normalizedPrefix, prefixLength)) {
+                    resultMetadata.add(metadata);
+                }
+            }
+            return resultMetadata;
         }
         // If the prefix exists in the trie, then add all the leaves in the sub trie to the set
-        searchSubTrie(node, resultMetadata);
+        searchSubTrie(node, filter, resultMetadata);
         return resultMetadata;
     }
 
+    /**
+     * Method to check if a sentence has a word which would be found in the trie by the prefix, analyzing the
+     * sentence exactly as insertSentence does
+     * @param sentence list of words delimited by whitespace
+     * @param prefix normalized code points of the prefix
+     * @param prefixLength number of code points in the prefix
+     * @return true if an inserted word of the sentence starts with the prefix
+     */
+    private boolean sentenceHasPrefix(String sentence, int[] prefix, int prefixLength) {
+        int[] token = getTokenBuffer(sentence.length());
+        int length = 0;
+        int offset = 0;
+        while (offset < sentence.length()) {
+            int codePoint = sentence.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            if (analyzer.isDelimiter(codePoint, null)) {
+                if (tokenHasPrefix(token, length, prefix, prefixLength)) {
+                    return true;
+                }
+                length = 0;
+                continue;
+            }
+            int normalized = analyzer.normalize(codePoint);
+            if (normalized != Analyzer.STRIP) {
+                token[length++] = normalized;
+            }
+        }
+        return tokenHasPrefix(token, length, prefix, prefixLength);
+    }
+
+    /**
+     * Method to check if a normalized token would be inserted into the trie and starts with the prefix
+     * @param token buffer holding the normalized code points
+     * @param length number of code points in the token
+     * @param prefix normalized code points of the prefix
+     * @param prefixLength number of code points in the prefix
+     * @return true if the token is inserted by insertToken and starts with the prefix
+     */
+    private boolean tokenHasPrefix(int[] token, int length, int[] prefix, int prefixLength) {
+        if (length == 0 || length < prefixLength || analyzer.isStopWord(token, length)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (token[i] >= characterSpace || (i < prefixLength && token[i] != prefix[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Method to exhaustively walk the sub trie and add metadata integers at the leaf nodes to the set
      * @param node root node of the sub trie
+     * @param filter bitmap of metadata integers allowed in the result, null to allow all
      * @param resultMetadata set of integers associated with all the leaf nodes in the sub trie
      */
-    private void searchSubTrie(TrieNode node, Set<Integer> resultMetadata) {
+    private void searchSubTrie(TrieNode node, BitSet filter, Set<Integer> resultMetadata) {
         if (node.isLeaf) {
             // read the size of the vector first and then add those elements.
             // Not using an iterator because node.metadata could change while inserting new words.
             // Reading the size is a snapshot of the metadata when query is hit.
             int count = node.metadata.size();
             for (int i = 0; i < count; i++) {
-                resultMetadata.add(node.metadata.get(i));
+                int metadata = node.metadata.get(i);
+                if (filter == null || filter.get(metadata)) {
+                    resultMetadata.add(metadata);
+                }
+            }
+        }
+        for (int i = 0; i < characterSpace; i++) {
+            if (node.nextCharacter[i].get() != null) {
+                searchSubTrie(node.nextCharacter[i].get(), filter, resultMetadata);
+            }
+        }
+    }
+
+    /**
+     * Method to search for all sentences containing the words of the phrase next to each other, in the same order.
+     * All the words of the phrase except the last must match complete words, the last word is matched as a
+     * prefix. The adjacency, anchoring and filter checks are done on the postings of each word, so only the
+     * matching metadata integers are returned.
+     * If the last word is a complete stop word, it was never inserted, so it matches either a longer word starting
+     * with it at the next position or no word at all. Eg. "lord of the" matches "The Lord of the Rings".
+     * A phrase made only of stop words matches its last word as a prefix, so "the" matches "Theory" only.
+     * @param phrase words to search in the trie. The phrase is analyzed like an inserted sentence, except that
+     *               the last word is kept as a prefix even if it is a stop word
+     * @param anchored true if the first word of the phrase must also be the first word of the sentence
+     * @param filter bitmap of metadata integers allowed in the result. Should be set to null to allow all
+     * @return a map from the metadata integer of each matching sentence to the lowest position where the phrase
+     * starts in the sentence
+     */
+    public Map<Integer, Integer> searchPhrase(String phrase, boolean anchored, BitSet filter) {
+        Map<Integer, Integer> resultPositions = new HashMap<>();
+        // Nothing can match an empty filter, avoid walking the trie
+        if (filter != null && filter.isEmpty()) {
+            return resultPositions;
+        }
+        List<int[]> tokens = analyzePhrase(phrase);
+        // Every character was stripped, the phrase cannot match a word
+        if (tokens.isEmpty() && phrase.trim().length() > 0) {
+            return resultPositions;
+        }
+
+        Map<Integer, BitSet> candidates = matchTokens(tokens, true, anchored, filter);
+        int[] lastToken = tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+        // Stop words before the last token were dropped, so a longer list has a word which is not a stop word.
+        // Without one, the stop word standing for no word would match every sentence.
+        if (tokens.size() > 1 && analyzer.isStopWord(lastToken, lastToken.length)) {
+            // The stop word may also stand for no word, then the words before it have to match completely
+            Map<Integer, BitSet> withoutStopWord = matchTokens(tokens.subList(0, tokens.size() - 1), false,
+                    anchored, filter);
+            for (Map.Entry<Integer, BitSet> entry : withoutStopWord.entrySet()) {
+                BitSet starts = candidates.get(entry.getKey());
+                if (starts == null) {
+                    candidates.put(entry.getKey(), entry.getValue());
+                } else {
+                    starts.or(entry.getValue());
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, BitSet> entry : candidates.entrySet()) {
+            resultPositions.put(entry.getKey(), entry.getValue().nextSetBit(0));
+        }
+        return resultPositions;
+    }
+
+    /**
+     * Method to find the positions where a list of tokens appears next to each other, in the same order
+     * @param tokens normalized tokens of the phrase. If empty, every sentence matches
+     * @param lastIsPrefix true if the last token is matched as a prefix, false if it must match a complete word
+     * @param anchored true if the first token must also be the first word of the sentence
+     * @param filter bitmap of metadata integers allowed in the result, null to allow all
+     * @return a map from the metadata integer of each matching sentence to the positions where the tokens start
+     */
+    private Map<Integer, BitSet> matchTokens(List<int[]> tokens, boolean lastIsPrefix, boolean anchored,
+                                             BitSet filter) {
+        // Positions where the phrase can start, for each candidate metadata integer
+        Map<Integer, BitSet> candidates = new HashMap<>();
+        TrieNode node = tokens.isEmpty() ? root : findNode(tokens.get(0));
+        if (node == null) {
+            return candidates;
+        }
+        boolean exact = !tokens.isEmpty() && (tokens.size() > 1 || !lastIsPrefix);
+        collectPostings(node, exact, filter, anchored ? 0 : -1, candidates);
+
+        // Every following word has to be at the next position, keep only the starts for which that holds
+        for (int i = 1; i < tokens.size() && !candidates.isEmpty(); i++) {
+            node = findNode(tokens.get(i));
+            if (node == null) {
+                return new HashMap<>();
+            }
+            BitSet candidateIds = new BitSet();
+            for (int metadata : candidates.keySet()) {
+                candidateIds.set(metadata);
             }
+            Map<Integer, BitSet> postings = new HashMap<>();
+            collectPostings(node, i < tokens.size() - 1 || !lastIsPrefix, candidateIds, -1, postings);
+
+            Map<Integer, BitSet> nextCandidates = new HashMap<>();
+            for (Map.Entry<Integer, BitSet> entry : postings.entrySet()) {
+                BitSet starts = candidates.get(entry.getKey());
+                BitSet nextStarts = new BitSet();
+                for (int start = starts.nextSetBit(0); start >= 0; start = starts.nextSetBit(start + 1)) {
+                    if (entry.getValue().get(start + i)) {
+                        nextStarts.set(start);
+                    }
+                }
+                if (!nextStarts.isEmpty()) {
+                    nextCandidates.put(entry.getKey(), nextStarts);
+                }
+            }
+            candidates = nextCandidates;
+        }
+        return candidates;
+    }
+
+    /**
+     * Method to break a phrase into normalized tokens. Stop words are dropped, except for the last token
+     * which is only the beginning of a word.
+     * @param phrase words delimited by whitespace
+     * @return list of tokens, each one an array of normalized code points
+     */
+    private List<int[]> analyzePhrase(String phrase) {
+        List<int[]> tokens = new ArrayList<>();
+        int[] token = getTokenBuffer(phrase.length());
+        int length = 0;
+        int offset = 0;
+        while (offset < phrase.length()) {
+            int codePoint = phrase.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            if (analyzer.isDelimiter(codePoint, null)) {
+                addPhraseToken(tokens, token, length);
+                length = 0;
+                continue;
+            }
+            int normalized = analyzer.normalize(codePoint);
+            if (normalized != Analyzer.STRIP) {
+                token[length++] = normalized;
+            }
+        }
+        addPhraseToken(tokens, token, length);
+        for (int i = tokens.size() - 2; i >= 0; i--) {
+            if (analyzer.isStopWord(tokens.get(i), tokens.get(i).length)) {
+                tokens.remove(i);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Method to copy a token out of the token buffer and add it to the tokens of a phrase
+     * @param tokens of the phrase
+     * @param token buffer holding the normalized code points
+     * @param length number of code points in the token, nothing is added if its 0
+     */
+    private void addPhraseToken(List<int[]> tokens, int[] token, int length) {
+        if (length > 0) {
+            int[] copy = new int[length];
+            System.arraycopy(token, 0, copy, 0, length);
+            tokens.add(copy);
+        }
+    }
+
+    /**
+     * Method to find the node reached by descending the trie along a normalized token
+     * @param token normalized code points
+     * @return the node for the token, or null if no word in the trie starts with the token
+     */
+    private TrieNode findNode(int[] token) {
+        TrieNode node = root;
+        for (int nextChar : token) {
+            if (nextChar >= characterSpace || node.nextCharacter[nextChar].get() == null) {
+                return null;
+            }
+            node = node.nextCharacter[nextChar].get();
+        }
+        return node;
+    }
+
+    /**
+     * Method to collect the positions of the metadata integers in a node, or in its whole sub trie
+     * @param node to read the postings from
+     * @param exact true if only the node itself should be read, false to walk the sub trie as a prefix match
+     * @param filter bitmap of metadata integers allowed in the result, null to allow all
+     * @param onlyPosition if not negative, only postings at this position are collected
+     * @param postings map from metadata integer to the positions found for it
+     */
+    private void collectPostings(TrieNode node, boolean exact, BitSet filter, int onlyPosition,
+                                 Map<Integer, BitSet> postings) {
+        if (node.isLeaf) {
+            // Same snapshot as searchSubTrie, positions are always appended before metadata
+            int count = node.metadata.size();
+            for (int i = 0; i < count; i++) {
+                int metadata = node.metadata.get(i);
+                int position = node.positions.get(i);
+                if ((filter == null || filter.get(metadata)) && (onlyPosition < 0 || position == onlyPosition)) {
+                    BitSet positions = postings.get(metadata);
+                    if (positions == null) {
+                        positions = new BitSet();
+                        postings.put(metadata, positions);
+                    }
+                    positions.set(position);
+                }
+            }
+        }
+        if (exact) {
+            return;
         }
         for (int i = 0; i < characterSpace; i++) {
             if (node.nextCharacter[i].get() != null) {
-                searchSubTrie(node.nextCharacter[i].get(), resultMetadata);
+                collectPostings(node.nextCharacter[i].get(), false, filter, onlyPosition, postings);
             }
         }
     }
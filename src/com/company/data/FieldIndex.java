@@ -0,0 +1,78 @@
+package com.company.data;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class for storing secondary indexes over the year and country fields of the inserted items.
+ * Items are identified by the same integer used as metadata in the AtomicTrie, so a filter computed here can be
+ * intersected with the prefix postings while walking the trie, before any item is looked up.
+ * Each country keeps a bitmap of ids and the years are kept sorted so a year range is a contiguous walk of bitmaps.
+ * A year range covering every indexed year is answered without walking the years at all.
+ */
+public class FieldIndex {
+    private Map<String, BitSet> countryIndex;
+    private TreeMap<Integer, BitSet> yearIndex;
+    private BitSet allIds;
+
+    /**
+     * Constructor for FieldIndex
+     */
+    public FieldIndex() {
+        this.countryIndex = new HashMap<>();
+        this.yearIndex = new TreeMap<>();
+        this.allIds = new BitSet();
+    }
+
+    /**
+     * Method to add an item to the indexes. Synchronized as inserts come in from multiple threads and bitmaps
+     * are not thread safe.
+     * @param id integer identifying the item, same as the metadata in the trie
+     * @param year of the item
+     * @param countryCode of the item
+     */
+    public synchronized void add(int id, int year, String countryCode) {
+        if (id < 0) {
+            throw new IllegalArgumentException();
+        }
+        countryIndex.computeIfAbsent(countryCode, key -> new BitSet()).set(id);
+        yearIndex.computeIfAbsent(year, key -> new BitSet()).set(id);
+        allIds.set(id);
+    }
+
+    /**
+     * Method to find all the items that match the given year range and country.
+     * The returned bitmap is a copy, so it stays valid while new items are being added.
+     * @param fromYear lowest year to match, inclusive
+     * @param toYear highest year to match, inclusive
+     * @param countryCode to match. Should be set to null to match all countries
+     * @return a bitmap with the ids of all the matching items set
+     */
+    public synchronized BitSet search(int fromYear, int toYear, String countryCode) {
+        BitSet result = new BitSet();
+        if (fromYear > toYear) {
+            return result;
+        }
+        // An unknown country cannot match anything, so skip walking the years
+        BitSet countryIds = null;
+        if (countryCode != null) {
+            countryIds = countryIndex.get(countryCode);
+            if (countryIds == null) {
+                return result;
+            }
+        }
+        // A range covering all the years does not restrict anything, copy the country bitmap directly
+        if (yearIndex.isEmpty() || (fromYear <= yearIndex.firstKey() && toYear >= yearIndex.lastKey())) {
+            return (BitSet) (countryIds != null ? countryIds : allIds).clone();
+        }
+        for (BitSet yearIds : yearIndex.subMap(fromYear, true, toYear, true).values()) {
+            result.or(yearIds);
+        }
+        if (countryIds != null) {
+            result.and(countryIds);
+        }
+        return result;
+    }
+}
@@ -6,11 +6,16 @@ import java.util.concurrent.atomic.AtomicReference;
 /**
  * Class to define each node in the Trie
  * When setting up the TrieNode, the character space needs to be defined. Eg. for UTF-8 its 256.
+ * The position of the word in the sentence is kept for each metadata integer at the same index in positions.
+ * Both vectors are appended together while holding the lock of metadata, positions first, so a reader taking
+ * the size of metadata can always read the matching position.
  */
 public class TrieNode {
     AtomicReference<TrieNode>[] nextCharacter;
     Vector<Integer> metadata;
-    boolean isLeaf;
+    Vector<Integer> positions;
+    // volatile so a reader walking the trie sees a leaf as soon as its first metadata integer is added
+    volatile boolean isLeaf;
 
     TrieNode(int characterSpace) {
         if (characterSpace <= 0) {
@@ -21,6 +26,7 @@ public class TrieNode {
             nextCharacter[i] = new AtomicReference<TrieNode>(null);
         }
         metadata = new Vector<Integer>();
+        positions = new Vector<Integer>();
         isLeaf = false;
     }
 }
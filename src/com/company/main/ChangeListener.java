@@ -0,0 +1,18 @@
+package com.company.main;
+
+import com.company.model.Movie;
+
+import java.util.List;
+
+/**
+ * Interface to be notified of the movies added through an InsertHandler.
+ * Eg. used by the replication leader to publish changes to its followers.
+ */
+public interface ChangeListener {
+    /**
+     * Called after new movies are added to the movie list and the trie, on the thread which added them.
+     * Movies which already existed are not included.
+     * @param movies newly added movies
+     */
+    void moviesAdded(List<Movie> movies);
+}
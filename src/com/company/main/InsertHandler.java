@@ -1,11 +1,13 @@
 package com.company.main;
 
 import com.company.data.AtomicTrie;
+import com.company.data.FieldIndex;
 import com.company.model.Movie;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -21,7 +23,9 @@ import java.util.concurrent.Executors;
 public class InsertHandler {
     private AtomicTrie trie;
     private List<Movie> allMovies;
+    private FieldIndex fieldIndex;
     private ExecutorService executorService;
+    private volatile ChangeListener changeListener;
 
     /**
      * Constructor for Insert Handler
@@ -29,16 +33,35 @@ public class InsertHandler {
      * @param movies to be used to keep track of all movies
      */
     public InsertHandler(AtomicTrie trie, List<Movie> movies, int nThreads) {
+        this(trie, movies, null, nThreads);
+    }
+
+    /**
+     * Constructor for Insert Handler which also maintains the secondary indexes on year and country
+     * @param trie to be used to insert movie titles
+     * @param movies to be used to keep track of all movies
+     * @param fieldIndex to be used to index year and country of all movies. Can be null if filters are not used
+     */
+    public InsertHandler(AtomicTrie trie, List<Movie> movies, FieldIndex fieldIndex, int nThreads) {
         Objects.requireNonNull(trie);
         Objects.requireNonNull(movies);
         this.trie = trie;
         this.allMovies = movies;
+        this.fieldIndex = fieldIndex;
 
         // Set up a thread pool so user does not overwhelm the system
         // by submitting too many insert requests
         this.executorService = Executors.newFixedThreadPool(nThreads);
     }
 
+    /**
+     * Set the listener to be notified of the movies added by this handler
+     * @param changeListener to be notified, or null to stop notifications
+     */
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
     /**
      * Shutdown executor service
      */
@@ -100,8 +123,8 @@ public class InsertHandler {
 
     /**
      * This method is synchronized on allMovies list because it needs to check existence of the movie
-     * before adding it to the list, to avoid duplicate entries. A HashSet cannot be used because indexOf operation
-     * is required.
+     * before adding it to the list, to avoid duplicate entries. A HashSet cannot be used because the index of the
+     * movie in the list is used as metadata in the trie.
      * Basically its a trade off against these two other choices:
      * 1. Allow multiple entries of the same movie in the List [when race occurs]. Since only the index to a movie is
      * used it will not affect the functionality, but could cause space wastage for duplicate movie entries in case
@@ -111,21 +134,39 @@ public class InsertHandler {
      * titles are short, this might not be too bad of a choice either.
      * Although the critical synchronized section is minimal in the overall insert operation, this approach
      * takes memory efficiency over complete concurrency.
-     * @param newMovies is the set of new movies to be added to allMovies list. Titles are converted to lower case
-     *                  when adding to the trie
+     * @param newMovies is the set of new movies to be added to allMovies list. Titles are analyzed by the trie
+     *                  when adding to the trie. The change listener, if any, is notified of the movies which
+     *                  did not exist yet once they are all searchable.
      */
     public void addMovies(Set<Movie> newMovies) {
+        List<Movie> addedMovies = new ArrayList<Movie>();
         // Add the movie to the list if its not already existing
         for (Movie movie : newMovies) {
-            // synchronization is required to ensure a movie is only added once.
+            int index;
+            // synchronization is required to ensure a movie is only added once, and that its index is read
+            // from the same state of the list it was checked against.
             synchronized (allMovies) {
-                if (!allMovies.contains(movie)) {
+                index = allMovies.indexOf(movie);
+                if (index < 0) {
                     allMovies.add(movie);
+                    index = allMovies.size() - 1;
+                    // Index the fields with the same index used as metadata in the trie
+                    if (fieldIndex != null) {
+                        fieldIndex.add(index, movie.getYearOfRelease(), movie.getCountryCode());
+                    }
+                    addedMovies.add(movie);
                 }
             }
 
-            // Add all the words of the title to the Trie with the index in the list as metadata
-            trie.insertSentence(movie.getMovieTitle().toLowerCase(), allMovies.indexOf(movie));
+            // Add all the words of the title to the Trie with the index in the list as metadata.
+            // This is done even if the movie already existed, as the thread which added it may still be inserting
+            // the title, and every movie passed in must be searchable once this method returns.
+            trie.insertSentence(movie.getMovieTitle(), index);
+        }
+
+        ChangeListener listener = changeListener;
+        if (listener != null && !addedMovies.isEmpty()) {
+            listener.moviesAdded(addedMovies);
         }
     }
 }
@@ -0,0 +1,22 @@
+package com.company.main;
+
+/**
+ * Defines how the words of a query are matched against movie titles
+ */
+public enum MatchMode {
+    /**
+     * The query is a single prefix matched against any word of the title. Results are sorted on the title.
+     */
+    PREFIX,
+    /**
+     * The words of the query must be adjacent in the title and the first word must start the title.
+     * The last word is matched as a prefix. Results are sorted on the title.
+     */
+    TITLE_START,
+    /**
+     * The words of the query must be adjacent anywhere in the title. The last word is matched as a prefix.
+     * Results are sorted on the position where the match starts, so titles starting with the query come first,
+     * and then on the title.
+     */
+    PHRASE
+}
@@ -1,14 +1,20 @@
 package com.company.main;
 
 import com.company.data.AtomicTrie;
+import com.company.data.FieldIndex;
 import com.company.model.Movie;
 import com.company.model.MovieCompareOnTitle;
+import com.company.model.MovieFilter;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.IntFunction;
 
 /**
  * Class to Handle Queries
@@ -16,6 +22,8 @@ import java.util.Set;
 public class QueryHandler {
     private AtomicTrie trie;
     private List<Movie> allMovies;
+    private FieldIndex fieldIndex;
+    private IntFunction<String> movieTitles;
 
     /**
      * Constructor for Query Handler
@@ -23,31 +31,105 @@ public class QueryHandler {
      * @param movies to be used to look up movie objects based on indices received from trie
      */
     public QueryHandler(AtomicTrie trie, List<Movie> movies) {
+        this(trie, movies, null);
+    }
+
+    /**
+     * Constructor for Query Handler which supports filtering on year and country
+     * @param trie to be used to search prefixes
+     * @param movies to be used to look up movie objects based on indices received from trie
+     * @param fieldIndex to be used to filter on year and country. Can be null if filters are not used
+     */
+    public QueryHandler(AtomicTrie trie, List<Movie> movies, FieldIndex fieldIndex) {
         Objects.requireNonNull(trie);
         Objects.requireNonNull(movies);
         this.trie = trie;
         this.allMovies = movies;
+        this.fieldIndex = fieldIndex;
+        // Lets the trie check the titles of a few filtered movies directly instead of walking its nodes
+        this.movieTitles = new IntFunction<String>() {
+            @Override
+            public String apply(int index) {
+                return allMovies.get(index).getMovieTitle();
+            }
+        };
     }
 
     /**
      * Method to find all the Movies that match the prefix. All words of the movie title are searched against
-     * the prefix. Prefixes are converted to lower case for searching.
+     * the prefix. Prefixes are analyzed the same way as titles for searching.
      * @param prefix to use for searching for titles
      * @param maxResults limit the number of movie objects returned. Should be set to 0 if all the results are required
      * @return a list of movie objects sorted on the movie title
      */
     public List<Movie> runQuery(String prefix, int maxResults) {
-        Set<Integer> resultSet;
+        return runQuery(prefix, null, maxResults);
+    }
+
+    /**
+     * Method to find all the Movies that match the prefix and the filter. The filter is resolved against the
+     * secondary indexes and intersected with the prefix matches inside the trie, so only matching movies are
+     * looked up and sorted.
+     * @param prefix to use for searching for titles
+     * @param filter on year and country. Should be set to null if no filtering is required
+     * @param maxResults limit the number of movie objects returned. Should be set to 0 if all the results are required
+     * @return a list of movie objects sorted on the movie title
+     */
+    public List<Movie> runQuery(String prefix, MovieFilter filter, int maxResults) {
+        return runQuery(prefix, MatchMode.PREFIX, filter, maxResults);
+    }
+
+    /**
+     * Method to find all the Movies that match the query in the given mode and the filter. Word positions,
+     * adjacency and the filter are all checked inside the trie, so only matching movies are looked up and sorted.
+     * @param query to use for searching for titles. A single prefix in PREFIX mode, otherwise a list of words
+     * @param mode defines how the words of the query are matched and how results are ranked
+     * @param filter on year and country. Should be set to null if no filtering is required
+     * @param maxResults limit the number of movie objects returned. Should be set to 0 if all the results are required
+     * @return a list of movie objects sorted as defined by the mode
+     */
+    public List<Movie> runQuery(String query, MatchMode mode, MovieFilter filter, int maxResults) {
         List<Movie> resultList = new ArrayList<Movie>();
 
-        // Search the trie for the given index
-        resultSet = trie.searchAll(prefix.toLowerCase());
-        for (int index : resultSet) {
-            resultList.add(allMovies.get(index));
+        BitSet allowed = null;
+        if (filter != null) {
+            if (fieldIndex == null) {
+                throw new IllegalStateException("Query handler was created without a field index.");
+            }
+            allowed = fieldIndex.search(filter.getFromYear(), filter.getToYear(), filter.getCountryCode());
         }
 
-        // Sort the list based on movie titles
-        Collections.sort(resultList, new MovieCompareOnTitle());
+        if (mode == MatchMode.PREFIX) {
+            // Search the trie for the given index
+            Set<Integer> resultSet = trie.searchAll(query, allowed, movieTitles);
+            for (int index : resultSet) {
+                resultList.add(allMovies.get(index));
+            }
+
+            // Sort the list based on movie titles
+            Collections.sort(resultList, new MovieCompareOnTitle());
+        } else {
+            // Search the trie for the phrase, getting the position where each match starts
+            Map<Integer, Integer> resultPositions = trie.searchPhrase(query, mode == MatchMode.TITLE_START, allowed);
+            List<Map.Entry<Integer, Integer>> matches = new ArrayList<>(resultPositions.entrySet());
+
+            // Sort the matches based on the start position and then the movie titles
+            Collections.sort(matches, new Comparator<Map.Entry<Integer, Integer>>() {
+                private MovieCompareOnTitle compareOnTitle = new MovieCompareOnTitle();
+
+                @Override
+                public int compare(Map.Entry<Integer, Integer> o1, Map.Entry<Integer, Integer> o2) {
+                    int compare = Integer.compare(o1.getValue(), o2.getValue());
+                    if (compare != 0) {
+                        return compare;
+                    }
+                    return compareOnTitle.compare(allMovies.get(o1.getKey()), allMovies.get(o2.getKey()));
+                }
+            });
+            for (Map.Entry<Integer, Integer> match : matches) {
+                resultList.add(allMovies.get(match.getKey()));
+            }
+        }
 
         // If maxResults is 0 return the complete list, otherwise return subList
         if (maxResults == 0 || resultList.size() <= maxResults) {
@@ -59,13 +141,36 @@ public class QueryHandler {
 
     /**
      * Method to find and print all the Movies that match the prefix. All words of the movie title are searched against
-     * the prefix. Prefixes are converted to lower case for searching.
+     * the prefix. Prefixes are analyzed the same way as titles for searching.
      * @param prefix to use for searching titles
      * @param maxResults limit the number of movie objects returned. Should be set to 0 if all the results are
      *                   required to be printed.
      */
     public void printQueryResult(String prefix, int maxResults) {
-        List<Movie> resultList = runQuery(prefix, maxResults);
+        printQueryResult(prefix, null, maxResults);
+    }
+
+    /**
+     * Method to find and print all the Movies that match the prefix and the filter.
+     * @param prefix to use for searching titles
+     * @param filter on year and country. Should be set to null if no filtering is required
+     * @param maxResults limit the number of movie objects returned. Should be set to 0 if all the results are
+     *                   required to be printed.
+     */
+    public void printQueryResult(String prefix, MovieFilter filter, int maxResults) {
+        printQueryResult(prefix, MatchMode.PREFIX, filter, maxResults);
+    }
+
+    /**
+     * Method to find and print all the Movies that match the query in the given mode and the filter.
+     * @param query to use for searching titles. A single prefix in PREFIX mode, otherwise a list of words
+     * @param mode defines how the words of the query are matched and how results are ranked
+     * @param filter on year and country. Should be set to null if no filtering is required
+     * @param maxResults limit the number of movie objects returned. Should be set to 0 if all the results are
+     *                   required to be printed.
+     */
+    public void printQueryResult(String query, MatchMode mode, MovieFilter filter, int maxResults) {
+        List<Movie> resultList = runQuery(query, mode, filter, maxResults);
         for (Movie movie : resultList) {
             System.out.println(movie);
         }
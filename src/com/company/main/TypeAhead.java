@@ -1,7 +1,11 @@
 package com.company.main;
 
 import com.company.data.AtomicTrie;
+import com.company.data.FieldIndex;
 import com.company.model.Movie;
+import com.company.model.MovieFilter;
+import com.company.replication.ReplicationFollower;
+import com.company.replication.ReplicationLeader;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -16,6 +20,8 @@ import java.util.StringTokenizer;
 public class TypeAhead {
     private static InsertHandler insertHandler;
     private static QueryHandler queryHandler;
+    private static ReplicationLeader replicationLeader;
+    private static ReplicationFollower replicationFollower;
 
     // this is configured to use UTF-8
     private static int CHARACTER_SPACE = 256;
@@ -26,7 +32,50 @@ public class TypeAhead {
      * Method to print the help for the user
      */
     private static void printHelp() {
-        System.out.println("Usage: [process-file|query|quit] [parameters..]");
+        System.out.println("Usage: [process-file|query|query-start|query-phrase|replication-status|quit] "
+                + "[parameters..]");
+        System.out.println("Query filters: query <prefix> [from=<year>] [to=<year>] [country=<code>]");
+        System.out.println("Word queries: [query-start|query-phrase] <words..> [filters..]");
+    }
+
+    /**
+     * Method to parse the optional filters of a query command
+     * @param filters list of filters in the form name=value
+     * @return a filter on year and country, or null if no filters were provided
+     * @throws IllegalArgumentException when a filter is not valid
+     */
+    static MovieFilter parseFilter(List<String> filters) {
+        if (filters.isEmpty()) {
+            return null;
+        }
+        int fromYear = Integer.MIN_VALUE;
+        int toYear = Integer.MAX_VALUE;
+        String countryCode = null;
+        for (String filter : filters) {
+            int separator = filter.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException(filter);
+            }
+            String value = filter.substring(separator + 1);
+            try {
+                switch (filter.substring(0, separator)) {
+                    case "from":
+                        fromYear = Integer.parseInt(value);
+                        break;
+                    case "to":
+                        toYear = Integer.parseInt(value);
+                        break;
+                    case "country":
+                        countryCode = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(filter);
+                }
+            } catch (NumberFormatException exception) {
+                throw new IllegalArgumentException(filter);
+            }
+        }
+        return new MovieFilter(fromYear, toYear, countryCode);
     }
 
     /**
@@ -45,6 +94,10 @@ public class TypeAhead {
                     break;
                 }
                 String fileName = tokenizer.nextToken();
+                if (replicationFollower != null) {
+                    System.out.println("This node is a read replica. Please add files on the leader.");
+                    break;
+                }
                 try {
                     insertHandler.processNewFile(fileName);
                 } catch (IOException exception) {
@@ -59,10 +112,71 @@ public class TypeAhead {
                     break;
                 }
                 String prefix = tokenizer.nextToken();
-                queryHandler.printQueryResult(prefix, MAX_RESULTS);
+                List<String> filters = new ArrayList<String>();
+                while (tokenizer.hasMoreTokens()) {
+                    filters.add(tokenizer.nextToken());
+                }
+                MovieFilter filter;
+                try {
+                    filter = parseFilter(filters);
+                } catch (IllegalArgumentException exception) {
+                    System.out.println("Invalid filter " + exception.getMessage() + ".");
+                    printHelp();
+                    break;
+                }
+                queryHandler.printQueryResult(prefix, filter, MAX_RESULTS);
+                break;
+            }
+            case "query-start":
+            case "query-phrase": {
+                if (!tokenizer.hasMoreTokens()) {
+                    System.out.println("Please provide one or more words.");
+                    printHelp();
+                    break;
+                }
+                // Words run till the first filter
+                StringBuilder words = new StringBuilder();
+                List<String> filters = new ArrayList<String>();
+                while (tokenizer.hasMoreTokens()) {
+                    String token = tokenizer.nextToken();
+                    if (filters.isEmpty() && token.indexOf('=') < 0) {
+                        words.append(token).append(' ');
+                    } else {
+                        filters.add(token);
+                    }
+                }
+                MovieFilter filter;
+                try {
+                    filter = parseFilter(filters);
+                } catch (IllegalArgumentException exception) {
+                    System.out.println("Invalid filter " + exception.getMessage() + ".");
+                    printHelp();
+                    break;
+                }
+                MatchMode mode = directive.equals("query-start") ? MatchMode.TITLE_START : MatchMode.PHRASE;
+                queryHandler.printQueryResult(words.toString(), mode, filter, MAX_RESULTS);
+                break;
+            }
+            case "replication-status": {
+                if (replicationLeader != null) {
+                    System.out.println("leader sequence=" + replicationLeader.getSequence()
+                            + " followers=" + replicationLeader.getFollowerCount());
+                } else if (replicationFollower != null) {
+                    System.out.println("follower sequence=" + replicationFollower.getAppliedSequence()
+                            + " lag-ms=" + replicationFollower.getLagMillis()
+                            + " connected=" + replicationFollower.isConnected());
+                } else {
+                    System.out.println("Replication is not enabled.");
+                }
                 break;
             }
             case "quit": {
+                if (replicationLeader != null) {
+                    replicationLeader.shutDown();
+                }
+                if (replicationFollower != null) {
+                    replicationFollower.shutDown();
+                }
                 insertHandler.shutDown();
                 return true;
             }
@@ -74,18 +188,62 @@ public class TypeAhead {
         return false;
     }
 
+    /**
+     * Method to set up replication from the command line arguments.
+     * "leader <port>" publishes inserted movies to followers, "follower <port>" serves queries on a read replica
+     * of the leader listening on that port. Without arguments the node runs standalone.
+     * @param args command line arguments
+     * @param allMovies list of all movies, used for snapshots on the leader
+     * @return true if the arguments are valid and replication could be set up
+     */
+    static boolean setUpReplication(String[] args, List<Movie> allMovies) {
+        if (args.length == 0) {
+            return true;
+        }
+        if (args.length != 2 || !(args[0].equals("leader") || args[0].equals("follower"))) {
+            System.out.println("Usage: TypeAhead [leader|follower] <port>");
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(args[1]);
+            if (args[0].equals("leader")) {
+                replicationLeader = new ReplicationLeader(allMovies, port);
+                insertHandler.setChangeListener(replicationLeader);
+                replicationLeader.start();
+                System.out.println("Replication leader listening on port " + replicationLeader.getPort() + ".");
+            } else {
+                replicationFollower = new ReplicationFollower(insertHandler, port);
+                replicationFollower.start();
+                System.out.println("Replication follower connected to port " + port + ".");
+            }
+        } catch (NumberFormatException exception) {
+            System.out.println("Please provide a valid port.");
+            return false;
+        } catch (IOException exception) {
+            System.out.println("Replication could not be set up on port " + args[1] + ".");
+            return false;
+        }
+        return true;
+    }
+
     public static void main(String[] args) {
         // Initialize the Trie and List of Movies for storage
         AtomicTrie trie = new AtomicTrie(CHARACTER_SPACE);
         List<Movie> allMovies = Collections.synchronizedList(new ArrayList<Movie>());
-        insertHandler = new InsertHandler(trie, allMovies, MAX_THREADS);
-        queryHandler = new QueryHandler(trie, allMovies);
+        FieldIndex fieldIndex = new FieldIndex();
+        insertHandler = new InsertHandler(trie, allMovies, fieldIndex, MAX_THREADS);
+        queryHandler = new QueryHandler(trie, allMovies, fieldIndex);
+        if (!setUpReplication(args, allMovies)) {
+            insertHandler.shutDown();
+            return;
+        }
 
-        // Run cmd loop till user quits
+        // Run cmd loop till user quits. A single scanner is used so piped input is not lost,
+        // and the end of input is treated as quit.
+        Scanner scanner = new Scanner(System.in);
         boolean quit = false;
         while (!quit) {
-            Scanner scanner = new Scanner(System.in);
-            String command = scanner.nextLine();
+            String command = scanner.hasNextLine() ? scanner.nextLine() : "quit";
             // ignore empty input
             if (command.length() > 0) {
                 quit = handleCommand(command);
@@ -0,0 +1,34 @@
+package com.company.model;
+
+/**
+ * Class to hold the field filters that can be applied on a prefix query.
+ * The year range is inclusive on both ends. A null country code matches movies from all countries.
+ */
+public class MovieFilter {
+    private int fromYear;
+    private int toYear;
+    private String countryCode;
+
+    public MovieFilter(int fromYear, int toYear, String countryCode) {
+        this.fromYear = fromYear;
+        this.toYear = toYear;
+        this.countryCode = countryCode;
+    }
+
+    @Override
+    public String toString() {
+        return fromYear + "-" + toYear + "\t" + (countryCode == null ? "*" : countryCode);
+    }
+
+    public int getFromYear() {
+        return fromYear;
+    }
+
+    public int getToYear() {
+        return toYear;
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+}
@@ -0,0 +1,144 @@
+package com.company.replication;
+
+import com.company.model.Movie;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class to hold one message of the change stream sent from the replication leader to its followers.
+ * Every batch of movies added on the leader gets the next sequence number. A snapshot carries all the movies
+ * known to the leader at the given sequence number, and a heartbeat carries no movies and only repeats the
+ * latest sequence number, so followers can measure their lag while the leader is idle.
+ * On the wire a message is: type, sequence, timestamp, number of movies and then year, country code and title
+ * of each movie. Strings are written as their number of UTF-8 bytes followed by the bytes, so titles of any
+ * length can be sent.
+ */
+public class ChangeBatch {
+    public static final byte SNAPSHOT = 0;
+    public static final byte BATCH = 1;
+    public static final byte HEARTBEAT = 2;
+    private static final int READ_CHUNK_BYTES = 8192;
+
+    private byte type;
+    private long sequence;
+    private long timestamp;
+    private List<Movie> movies;
+
+    /**
+     * Constructor for ChangeBatch
+     * @param type of the message, one of SNAPSHOT, BATCH or HEARTBEAT
+     * @param sequence number of the latest batch included in this message
+     * @param timestamp in milliseconds when the leader sent this message
+     * @param movies carried by this message
+     */
+    public ChangeBatch(byte type, long sequence, long timestamp, List<Movie> movies) {
+        if (type < SNAPSHOT || type > HEARTBEAT || movies == null) {
+            throw new IllegalArgumentException();
+        }
+        this.type = type;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.movies = movies;
+    }
+
+    /**
+     * Method to write this message to a stream. The stream is not flushed.
+     * @param out stream connected to a follower
+     * @throws IOException when the stream cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeLong(timestamp);
+        out.writeInt(movies.size());
+        for (Movie movie : movies) {
+            out.writeInt(movie.getYearOfRelease());
+            writeString(out, movie.getCountryCode());
+            writeString(out, movie.getMovieTitle());
+        }
+    }
+
+    /**
+     * Method to read the next message from a stream
+     * @param in stream connected to the leader
+     * @return the message read
+     * @throws IOException when the stream cannot be read or the message is malformed
+     */
+    public static ChangeBatch readFrom(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        int count = in.readInt();
+        if (type < SNAPSHOT || type > HEARTBEAT || count < 0) {
+            throw new IOException("Malformed change batch.");
+        }
+        // The list grows as movies are read, so a corrupt count cannot allocate more than the stream carries
+        List<Movie> movies = count == 0 ? Collections.<Movie>emptyList() : new ArrayList<Movie>();
+        for (int i = 0; i < count; i++) {
+            int year = in.readInt();
+            String countryCode = readString(in);
+            String title = readString(in);
+            movies.add(new Movie(year, countryCode, title));
+        }
+        return new ChangeBatch(type, sequence, timestamp, movies);
+    }
+
+    /**
+     * Method to write a string as its length in UTF-8 bytes followed by the bytes
+     * @param out stream connected to a follower
+     * @param string to be written
+     * @throws IOException when the stream cannot be written
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Method to read a string written by writeString. The bytes are read in chunks, so a corrupt length cannot
+     * allocate more than the stream carries.
+     * @param in stream connected to the leader
+     * @return the string read
+     * @throws IOException when the stream cannot be read or the length is malformed
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Malformed change batch.");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(length, READ_CHUNK_BYTES));
+        byte[] chunk = new byte[Math.min(length, READ_CHUNK_BYTES)];
+        int remaining = length;
+        while (remaining > 0) {
+            int chunkLength = Math.min(remaining, chunk.length);
+            in.readFully(chunk, 0, chunkLength);
+            bytes.write(chunk, 0, chunkLength);
+            remaining -= chunkLength;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<Movie> getMovies() {
+        return movies;
+    }
+}
@@ -0,0 +1,172 @@
+package com.company.replication;
+
+import com.company.main.InsertHandler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+
+/**
+ * Class for keeping a read replica in sync with a replication leader on the same host.
+ * The follower connects to the leader, applies the snapshot and then every change batch in order through its
+ * own InsertHandler, so its trie, movie list and field index can serve queries like the leader's.
+ * Lag metrics:
+ * 1. Applied sequence: sequence number of the latest batch applied, compared against the leader's sequence.
+ * 2. Lag in milliseconds: time between the leader sending the latest message and the follower applying it.
+ * Heartbeats from the leader keep this up to date when no movies are being added.
+ */
+public class ReplicationFollower {
+    private InsertHandler insertHandler;
+    private int port;
+    private Socket socket;
+    private boolean connected;
+    private long appliedSequence;
+    private volatile long lagMillis;
+
+    /**
+     * Constructor for Replication Follower
+     * @param insertHandler to be used to apply the changes received from the leader
+     * @param port the leader is listening on
+     */
+    public ReplicationFollower(InsertHandler insertHandler, int port) {
+        Objects.requireNonNull(insertHandler);
+        this.insertHandler = insertHandler;
+        this.port = port;
+        this.appliedSequence = -1;
+    }
+
+    /**
+     * Connect to the leader and start applying its changes in a new thread
+     * @throws IOException when the leader cannot be reached
+     */
+    public void start() throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        synchronized (this) {
+            connected = true;
+        }
+        Thread readThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readChanges(in);
+            }
+        }, "replication-follower");
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    /**
+     * Disconnect from the leader
+     */
+    public void shutDown() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException exception) {
+            System.out.println("Replication follower could not be closed cleanly.");
+        }
+    }
+
+    /**
+     * Method to wait till a batch has been applied, eg. to read your own writes made on the leader
+     * @param sequence number of the batch to wait for
+     * @param timeoutMillis maximum time to wait
+     * @return true if the batch was applied, false if the timeout expired or the follower got disconnected
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized boolean awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (appliedSequence < sequence && connected) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return appliedSequence >= sequence;
+    }
+
+    /**
+     * @return sequence number of the latest batch applied, -1 before the snapshot is applied
+     */
+    public synchronized long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return milliseconds between the leader sending the latest message and this follower applying it
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * @return true while the follower is connected to the leader
+     */
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Read and apply messages from the leader till the connection is closed
+     * @param in stream connected to the leader
+     */
+    private void readChanges(DataInputStream in) {
+        try {
+            while (true) {
+                apply(ChangeBatch.readFrom(in));
+            }
+        } catch (EOFException exception) {
+            System.out.println("Replication leader closed the connection.");
+        } catch (IOException exception) {
+            if (!socket.isClosed()) {
+                System.out.println("Replication stopped: " + exception.getMessage());
+            }
+        } finally {
+            synchronized (this) {
+                connected = false;
+                notifyAll();
+            }
+            shutDown();
+        }
+    }
+
+    /**
+     * Apply one message from the leader
+     * @param batch message read from the leader
+     * @throws IOException when a batch is missing from the stream
+     */
+    private void apply(ChangeBatch batch) throws IOException {
+        long expected;
+        synchronized (this) {
+            expected = appliedSequence;
+        }
+        switch (batch.getType()) {
+            case ChangeBatch.SNAPSHOT:
+                insertHandler.addMovies(new LinkedHashSet<>(batch.getMovies()));
+                break;
+            case ChangeBatch.BATCH:
+                if (batch.getSequence() != expected + 1) {
+                    throw new IOException("Expected batch " + (expected + 1) + " but got " + batch.getSequence());
+                }
+                insertHandler.addMovies(new LinkedHashSet<>(batch.getMovies()));
+                break;
+            default:
+                if (batch.getSequence() != expected) {
+                    throw new IOException("Heartbeat for batch " + batch.getSequence() + " after " + expected);
+                }
+        }
+        lagMillis = System.currentTimeMillis() - batch.getTimestamp();
+        synchronized (this) {
+            appliedSequence = batch.getSequence();
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.company.replication;
+
+import com.company.main.ChangeListener;
+import com.company.model.Movie;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class for publishing the movies added on this node to follower nodes over a local socket.
+ * The leader listens on the loopback interface. A new follower first gets a snapshot of all the movies in the
+ * list and then every change batch published after it, in order.
+ * Each follower has a bounded queue of batches and its own writer thread, so the leader lock is only held to
+ * assign sequence numbers and enqueue batches, never while writing to a socket. A follower is registered under
+ * the lock at the current sequence number and its snapshot is then copied and written by its writer thread,
+ * so it never misses a batch between its snapshot and the stream. A movie added to the list while the snapshot
+ * is taken can be sent twice, which is harmless since followers add movies through an InsertHandler and skip
+ * the ones they already have.
+ * A follower which does not keep up and lets its queue fill up is disconnected, it can connect again and start
+ * over from a new snapshot. So a slow or stuck follower never slows down inserts on the leader.
+ */
+public class ReplicationLeader implements ChangeListener {
+    private static int HEARTBEAT_MILLIS = 1000;
+    private static int FOLLOWER_QUEUE_CAPACITY = 1024;
+
+    private List<Movie> allMovies;
+    private ServerSocket serverSocket;
+    private List<Follower> followers;
+    private ScheduledExecutorService heartbeatService;
+    // Written while holding the lock of the leader, volatile so it can be read without waiting for the lock
+    private volatile long sequence;
+
+    /**
+     * Constructor for Replication Leader
+     * @param movies list of all movies, used for snapshots of new followers
+     * @param port to listen on for followers. If 0, a free port is picked
+     * @throws IOException when the port cannot be opened
+     */
+    public ReplicationLeader(List<Movie> movies, int port) throws IOException {
+        Objects.requireNonNull(movies);
+        this.allMovies = movies;
+        this.followers = new ArrayList<Follower>();
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Start accepting followers and sending heartbeats
+     */
+    public void start() {
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptFollowers();
+            }
+        }, "replication-leader");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        heartbeatService = Executors.newSingleThreadScheduledExecutor();
+        heartbeatService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop accepting followers and close the connections to all followers
+     */
+    public void shutDown() {
+        if (heartbeatService != null) {
+            heartbeatService.shutdown();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException exception) {
+            System.out.println("Replication leader could not be closed cleanly.");
+        }
+        synchronized (this) {
+            for (Follower follower : followers) {
+                follower.close();
+            }
+            followers.clear();
+        }
+    }
+
+    /**
+     * Method to publish a batch of newly added movies to all followers
+     * @param movies newly added movies
+     */
+    @Override
+    public synchronized void moviesAdded(List<Movie> movies) {
+        sequence++;
+        publish(new ChangeBatch(ChangeBatch.BATCH, sequence, System.currentTimeMillis(), movies));
+    }
+
+    /**
+     * @return the port the leader is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return sequence number of the latest published batch, 0 if nothing was published yet
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return number of followers currently connected
+     */
+    public synchronized int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * Accept followers till the leader is shut down
+     */
+    private void acceptFollowers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                addFollower(serverSocket.accept());
+            } catch (IOException exception) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("Replication leader could not accept a follower.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Register a new follower at the current sequence number and start its writer thread, which sends the
+     * snapshot followed by the queued batches
+     * @param socket connected to the follower
+     */
+    private void addFollower(Socket socket) {
+        Follower follower;
+        try {
+            follower = new Follower(socket);
+        } catch (IOException exception) {
+            System.out.println("Follower " + socket.getRemoteSocketAddress() + " could not be set up.");
+            closeQuietly(socket);
+            return;
+        }
+        long snapshotSequence;
+        synchronized (this) {
+            snapshotSequence = sequence;
+            followers.add(follower);
+        }
+        follower.start(snapshotSequence);
+    }
+
+    /**
+     * Remove a follower which got disconnected
+     * @param follower to be removed
+     */
+    private synchronized void removeFollower(Follower follower) {
+        followers.remove(follower);
+    }
+
+    /**
+     * Send a heartbeat with the latest sequence number so followers can measure their lag
+     */
+    private synchronized void heartbeat() {
+        publish(new ChangeBatch(ChangeBatch.HEARTBEAT, sequence, System.currentTimeMillis(),
+                Collections.<Movie>emptyList()));
+    }
+
+    /**
+     * Queue a message for all followers. Followers whose queue is full are disconnected.
+     * Must be called while holding the lock of the leader.
+     * @param batch message to be sent
+     */
+    private void publish(ChangeBatch batch) {
+        Iterator<Follower> iterator = followers.iterator();
+        while (iterator.hasNext()) {
+            Follower follower = iterator.next();
+            if (!follower.queue.offer(batch)) {
+                System.out.println("Follower " + follower.socket.getRemoteSocketAddress()
+                        + " is not keeping up, disconnecting it.");
+                follower.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Class to hold the connection, queue and writer thread of one follower
+     */
+    private class Follower {
+        private Socket socket;
+        private DataOutputStream out;
+        private BlockingQueue<ChangeBatch> queue;
+        private volatile Thread writerThread;
+
+        Follower(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.queue = new ArrayBlockingQueue<ChangeBatch>(FOLLOWER_QUEUE_CAPACITY);
+        }
+
+        /**
+         * Start the writer thread of this follower
+         * @param snapshotSequence sequence number the follower was registered at
+         */
+        void start(final long snapshotSequence) {
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeChanges(snapshotSequence);
+                }
+            }, "replication-leader-" + socket.getRemoteSocketAddress());
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        /**
+         * Write the snapshot and then the queued batches till the follower is disconnected
+         * @param snapshotSequence sequence number the follower was registered at
+         */
+        private void writeChanges(long snapshotSequence) {
+            try {
+                // Every batch up to the snapshot sequence was added to the list before being published,
+                // so copying the list now includes all of them
+                List<Movie> snapshot;
+                synchronized (allMovies) {
+                    snapshot = new ArrayList<Movie>(allMovies);
+                }
+                new ChangeBatch(ChangeBatch.SNAPSHOT, snapshotSequence, System.currentTimeMillis(), snapshot)
+                        .writeTo(out);
+                out.flush();
+                while (true) {
+                    queue.take().writeTo(out);
+                    // Flush once the queue is drained so bursts of batches share a write
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | InterruptedException exception) {
+                if (!socket.isClosed()) {
+                    System.out.println("Follower " + socket.getRemoteSocketAddress() + " disconnected.");
+                }
+            } finally {
+                close();
+                removeFollower(this);
+            }
+        }
+
+        /**
+         * Close the connection, which also stops the writer thread if it is blocked writing
+         */
+        void close() {
+            closeQuietly(socket);
+            Thread thread = writerThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException exception) {
+            // nothing more can be done with this follower
+        }
+    }
+}
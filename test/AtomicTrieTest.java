@@ -1,8 +1,13 @@
+import com.company.data.Analyzer;
 import com.company.data.AtomicTrie;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.IntFunction;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -49,6 +54,153 @@ public class AtomicTrieTest {
         Assert.assertTrue(!result.contains(5));
     }
 
+    @Test
+    public void testAnalyzer() {
+        AtomicTrie trie = new AtomicTrie(256, new Analyzer(true, true, Arrays.asList("The", "of")));
+        trie.insertSentence("The Lord of the Rings", 1);
+        trie.insertSentence("Alien: Covenant", 2);
+        trie.insertSentence("Spider-Man\tHomecoming", 3);
+        trie.insertWord("THEATER", 4);
+
+        // Titles and prefixes are case folded and stripped of punctuation
+        Assert.assertTrue(trie.searchAll("LORD").contains(1));
+        Assert.assertTrue(trie.searchAll("alien:").contains(2));
+        Assert.assertTrue(trie.searchAll("spiderm").contains(3));
+        Assert.assertTrue(trie.searchAll("Spider-M").contains(3));
+        Assert.assertTrue(trie.searchAll("home").contains(3));
+
+        // Stop words are not inserted, but a prefix is never treated as a stop word
+        Set<Integer> result = trie.searchAll("the");
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.contains(4));
+        Assert.assertTrue(trie.searchAll("of").isEmpty());
+
+        // A prefix spanning two words does not match
+        Assert.assertTrue(trie.searchAll("lord of").isEmpty());
+    }
+
+    @Test
+    public void testPunctuationOnlyPrefix() {
+        AtomicTrie trie = new AtomicTrie(256);
+        trie.insertSentence("Alien: Covenant", 1);
+        trie.insertSentence("Cinderella (2015)", 2);
+
+        // A prefix made only of stripped characters does not match every word
+        Assert.assertTrue(trie.searchAll(":").isEmpty());
+        Assert.assertTrue(trie.searchAll("(").isEmpty());
+        Assert.assertTrue(trie.searchPhrase(":", true, null).isEmpty());
+        Assert.assertTrue(trie.searchPhrase("( :", false, null).isEmpty());
+
+        // Empty prefixes still match everything
+        Assert.assertTrue(trie.searchAll("").size() == 2);
+        Assert.assertTrue(trie.searchPhrase("", false, null).size() == 2);
+        Assert.assertTrue(trie.searchAll("(2015").contains(2));
+    }
+
+    @Test
+    public void testInvalidCharacters() {
+        AtomicTrie trie = new AtomicTrie(256);
+        trie.insertSentence("valid word œuvre", 1);
+
+        Assert.assertTrue(trie.searchAll("valid").contains(1));
+        Assert.assertTrue(trie.searchAll("œ").isEmpty());
+        Assert.assertTrue(trie.searchAll("\u4e16").isEmpty());
+    }
+
+    @Test
+    public void testFilteredSearch() {
+        AtomicTrie trie = new AtomicTrie(256);
+        trie.insertSentence("this is a", 1);
+        trie.insertSentence("then is b", 2);
+        trie.insertSentence("c is those", 3);
+        trie.insertSentence("d thy", 4);
+
+        BitSet filter = new BitSet();
+        filter.set(2);
+        filter.set(4);
+        filter.set(5);
+        Set<Integer> result = trie.searchAll("th", filter);
+        Assert.assertTrue(result.size() == 2);
+        Assert.assertTrue(result.contains(2));
+        Assert.assertTrue(result.contains(4));
+
+        // Empty filter should not match anything
+        result = trie.searchAll("", new BitSet());
+        Assert.assertTrue(result.isEmpty());
+
+        // A small filter checks the sentences directly and must agree with walking the trie
+        String[] sentences = {null, "this is a", "then is b", "c is those", "d thy", null};
+        IntFunction<String> lookup = new IntFunction<String>() {
+            @Override
+            public String apply(int metadata) {
+                return sentences[metadata];
+            }
+        };
+        filter.clear(5);
+        for (String prefix : new String[]{"", "th", "thy", "is", "b", "x", "thyself"}) {
+            Assert.assertEquals(trie.searchAll(prefix, filter), trie.searchAll(prefix, filter, lookup));
+        }
+        Assert.assertTrue(trie.searchAll("th", filter, lookup).size() == 2);
+    }
+
+    @Test
+    public void testPhraseSearch() {
+        AtomicTrie trie = new AtomicTrie(256, new Analyzer(true, true, Arrays.asList("the", "of")));
+        trie.insertSentence("The Lord of the Rings", 1);
+        trie.insertSentence("Rings of Power", 2);
+        trie.insertSentence("Lord Jim", 3);
+
+        // Stop words do not take a position
+        Map<Integer, Integer> result = trie.searchPhrase("lord of the rin", false, null);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.get(1) == 0);
+
+        result = trie.searchPhrase("rings", false, null);
+        Assert.assertTrue(result.size() == 2);
+        Assert.assertTrue(result.get(1) == 1);
+        Assert.assertTrue(result.get(2) == 0);
+
+        result = trie.searchPhrase("rings", true, null);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.containsKey(2));
+
+        // A complete stop word at the end matches a longer word or no word at all
+        result = trie.searchPhrase("lord of the", false, null);
+        Assert.assertTrue(result.size() == 2);
+        Assert.assertTrue(result.get(1) == 0);
+        Assert.assertTrue(result.get(3) == 0);
+        result = trie.searchPhrase("lord of the r", false, null);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.get(1) == 0);
+        result = trie.searchPhrase("rings of", false, null);
+        Assert.assertTrue(result.size() == 2);
+        Assert.assertTrue(result.get(2) == 0);
+        trie.insertSentence("Theory of Everything", 4);
+        // Without a word before it, a stop word is only matched as a prefix
+        result = trie.searchPhrase("the", true, null);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.get(4) == 0);
+        result = trie.searchPhrase("of the", true, null);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.get(4) == 0);
+        result = trie.searchPhrase("the", false, null);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.get(4) == 0);
+        Assert.assertTrue(trie.searchPhrase("of", false, null).isEmpty());
+        Assert.assertTrue(trie.searchPhrase("lord of the", true, null).containsKey(1));
+        Assert.assertTrue(trie.searchPhrase("lo of the", false, null).isEmpty());
+
+        // Words before the last one must match completely
+        Assert.assertTrue(trie.searchPhrase("lo jim", false, null).isEmpty());
+        Assert.assertTrue(trie.searchPhrase("lord j", false, null).containsKey(3));
+
+        BitSet filter = new BitSet();
+        filter.set(3);
+        result = trie.searchPhrase("lord", true, filter);
+        Assert.assertTrue(result.size() == 1);
+        Assert.assertTrue(result.containsKey(3));
+    }
+
     @Test
     public void testMultiThreaded() {
         int nThreads = 2000 ;
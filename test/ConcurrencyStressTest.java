@@ -0,0 +1,480 @@
+import com.company.data.AtomicTrie;
+import com.company.data.FieldIndex;
+import com.company.main.InsertHandler;
+import com.company.main.MatchMode;
+import com.company.main.QueryHandler;
+import com.company.model.Movie;
+import com.company.model.MovieCompareOnTitle;
+import com.company.model.MovieFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Randomized stress tests running inserts and queries at the same time.
+ * Every query is checked against a sequential model of the data: a query must return everything whose insert
+ * completed before the query started, and nothing whose insert had not started when the query ended. Readers mix
+ * prefix queries with multi-word phrase and title start queries.
+ * Once all the inserts are done, results must match the model exactly. The seed is part of every failure
+ * message so a failing run can be reproduced.
+ */
+public class ConcurrencyStressTest {
+    // Insert state of each word or file, 0 until its insert starts
+    private static final int STARTED = 1;
+    private static final int COMPLETED = 2;
+
+    private static final int ROUNDS = 20;
+    private static final int WRITERS = 8;
+    private static final int READERS = 4;
+    private static final String[] COUNTRIES = {"US", "UK", "DE", "FR"};
+
+    @Test
+    public void testInsertWordAndSearchAll() throws Exception {
+        long seed = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            runInsertWordAndSearchAll(seed + round * 1000);
+        }
+    }
+
+    @Test
+    public void testProcessFileAndRunQuery() throws Exception {
+        long seed = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            runProcessFileAndRunQuery(seed + round * 1000);
+        }
+    }
+
+    private void runInsertWordAndSearchAll(long seed) throws Exception {
+        Random random = new Random(seed);
+        int nWords = 4000;
+        String[] words = new String[nWords];
+        for (int i = 0; i < nWords; i++) {
+            words[i] = randomWord(random);
+        }
+
+        AtomicTrie trie = new AtomicTrie(256);
+        AtomicIntegerArray state = new AtomicIntegerArray(nWords);
+        Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        CountDownLatch startGate = new CountDownLatch(1);
+        CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        ExecutorService executorService = Executors.newFixedThreadPool(WRITERS + READERS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startGate.await();
+                    try {
+                        for (int id = writer; id < nWords; id += WRITERS) {
+                            state.set(id, STARTED);
+                            trie.insertWord(words[id], id);
+                            state.set(id, COMPLETED);
+                        }
+                    } finally {
+                        writersDone.countDown();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            final Random readerRandom = new Random(seed + r + 1);
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startGate.await();
+                    while (writersDone.getCount() > 0) {
+                        String prefix = randomPrefix(readerRandom);
+                        Set<Integer> completedBefore = idsInState(state, COMPLETED);
+                        Set<Integer> result = trie.searchAll(prefix);
+                        Set<Integer> startedAfter = idsInState(state, STARTED);
+                        for (int id : completedBefore) {
+                            if (words[id].startsWith(prefix) && !result.contains(id)) {
+                                failures.add("'" + prefix + "' missed completed word " + words[id]);
+                            }
+                        }
+                        for (int id : result) {
+                            if (!startedAfter.contains(id) || !words[id].startsWith(prefix)) {
+                                failures.add("'" + prefix + "' returned unexpected word " + words[id]);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        startGate.countDown();
+        awaitAll(executorService, futures, seed);
+        Assert.assertTrue("seed " + seed + ": " + failures.peek(), failures.isEmpty());
+
+        // Once quiescent the trie must match the sequential model exactly
+        for (String prefix : allPrefixes()) {
+            Set<Integer> expected = new HashSet<Integer>();
+            for (int id = 0; id < nWords; id++) {
+                if (words[id].startsWith(prefix)) {
+                    expected.add(id);
+                }
+            }
+            Assert.assertEquals("seed " + seed + " prefix '" + prefix + "'", expected, trie.searchAll(prefix));
+        }
+    }
+
+    private void runProcessFileAndRunQuery(long seed) throws Exception {
+        Random random = new Random(seed);
+
+        // Build files from a pool of movies, overlapping so the same movie is added concurrently
+        Set<Movie> pool = new LinkedHashSet<Movie>();
+        while (pool.size() < 200) {
+            pool.add(new Movie(2000 + random.nextInt(20), COUNTRIES[random.nextInt(COUNTRIES.length)],
+                    randomTitle(random)));
+        }
+        List<Movie> poolList = new ArrayList<Movie>(pool);
+        int nFiles = 4 * WRITERS;
+        List<Set<Movie>> fileMovies = new ArrayList<Set<Movie>>();
+        List<String> fileContents = new ArrayList<String>();
+        for (int f = 0; f < nFiles; f++) {
+            Set<Movie> movies = new LinkedHashSet<Movie>();
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                Movie movie = poolList.get(random.nextInt(poolList.size()));
+                movies.add(movie);
+                content.append(movie).append('\n');
+            }
+            fileMovies.add(movies);
+            fileContents.add(content.toString());
+        }
+
+        AtomicTrie trie = new AtomicTrie(256);
+        List<Movie> allMovies = Collections.synchronizedList(new ArrayList<Movie>());
+        FieldIndex fieldIndex = new FieldIndex();
+        InsertHandler insertHandler = new InsertHandler(trie, allMovies, fieldIndex, 1);
+        QueryHandler queryHandler = new QueryHandler(trie, allMovies, fieldIndex);
+
+        AtomicIntegerArray state = new AtomicIntegerArray(nFiles);
+        Queue<String> failures = new ConcurrentLinkedQueue<String>();
+        CountDownLatch startGate = new CountDownLatch(1);
+        CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        ExecutorService executorService = Executors.newFixedThreadPool(WRITERS + READERS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startGate.await();
+                    try {
+                        for (int f = writer; f < nFiles; f += WRITERS) {
+                            state.set(f, STARTED);
+                            insertHandler.processFile(new BufferedReader(new StringReader(fileContents.get(f))),
+                                    "file" + f);
+                            state.set(f, COMPLETED);
+                        }
+                    } finally {
+                        writersDone.countDown();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            final Random readerRandom = new Random(seed + r + 1);
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startGate.await();
+                    while (writersDone.getCount() > 0) {
+                        MovieFilter filter = readerRandom.nextBoolean() ? null : randomFilter(readerRandom);
+                        int kind = readerRandom.nextInt(3);
+                        if (kind == 0) {
+                            String prefix = randomPrefix(readerRandom);
+                            Set<Movie> completedBefore = moviesInState(state, COMPLETED, fileMovies);
+                            List<Movie> result = queryHandler.runQuery(prefix, filter, 0);
+                            Set<Movie> startedAfter = moviesInState(state, STARTED, fileMovies);
+                            checkQuery(prefix, filter, result, completedBefore, startedAfter, failures);
+                        } else {
+                            MatchMode mode = kind == 1 ? MatchMode.PHRASE : MatchMode.TITLE_START;
+                            List<String> phrase = randomPhrase(readerRandom, poolList, mode == MatchMode.TITLE_START);
+                            Set<Movie> completedBefore = moviesInState(state, COMPLETED, fileMovies);
+                            List<Movie> result = queryHandler.runQuery(String.join(" ", phrase), mode, filter, 0);
+                            Set<Movie> startedAfter = moviesInState(state, STARTED, fileMovies);
+                            checkPhraseQuery(phrase, mode, filter, result, completedBefore, startedAfter, failures);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        startGate.countDown();
+        awaitAll(executorService, futures, seed);
+        insertHandler.shutDown();
+        Assert.assertTrue("seed " + seed + ": " + failures.peek(), failures.isEmpty());
+
+        // Every movie is added exactly once
+        Set<Movie> expectedMovies = moviesInState(state, COMPLETED, fileMovies);
+        Assert.assertEquals("seed " + seed, expectedMovies.size(), allMovies.size());
+        Assert.assertEquals("seed " + seed, expectedMovies, new HashSet<Movie>(allMovies));
+
+        // Once quiescent every query mode must match the sequential model exactly
+        for (String prefix : allPrefixes()) {
+            MovieFilter filter = randomFilter(random);
+            Set<Movie> expectedAnywhere = new HashSet<Movie>();
+            Set<Movie> expectedStart = new HashSet<Movie>();
+            Set<Movie> expectedFiltered = new HashSet<Movie>();
+            for (Movie movie : expectedMovies) {
+                List<String> words = titleWords(movie);
+                for (String word : words) {
+                    if (word.startsWith(prefix)) {
+                        expectedAnywhere.add(movie);
+                        if (matchesFilter(movie, filter)) {
+                            expectedFiltered.add(movie);
+                        }
+                    }
+                }
+                if (words.get(0).startsWith(prefix)) {
+                    expectedStart.add(movie);
+                }
+            }
+            String message = "seed " + seed + " prefix '" + prefix + "'";
+            Assert.assertEquals(message, expectedAnywhere,
+                    new HashSet<Movie>(queryHandler.runQuery(prefix, 0)));
+            Assert.assertEquals(message, expectedAnywhere,
+                    new HashSet<Movie>(queryHandler.runQuery(prefix, MatchMode.PHRASE, null, 0)));
+            Assert.assertEquals(message, expectedStart,
+                    new HashSet<Movie>(queryHandler.runQuery(prefix, MatchMode.TITLE_START, null, 0)));
+            Assert.assertEquals(message + " filter " + filter, expectedFiltered,
+                    new HashSet<Movie>(queryHandler.runQuery(prefix, filter, 0)));
+        }
+    }
+
+    /**
+     * Check one query run during inserts against the bounds given by the sequential model
+     */
+    private static void checkQuery(String prefix, MovieFilter filter, List<Movie> result, Set<Movie> completedBefore,
+                                   Set<Movie> startedAfter, Queue<String> failures) {
+        MovieCompareOnTitle compareOnTitle = new MovieCompareOnTitle();
+        Set<Movie> resultSet = new HashSet<Movie>(result);
+        if (resultSet.size() != result.size()) {
+            failures.add("'" + prefix + "' returned duplicate movies");
+        }
+        for (int i = 1; i < result.size(); i++) {
+            if (compareOnTitle.compare(result.get(i - 1), result.get(i)) > 0) {
+                failures.add("'" + prefix + "' is not sorted on title");
+            }
+        }
+        for (Movie movie : completedBefore) {
+            if (matchesPrefix(movie, prefix) && matchesFilter(movie, filter) && !resultSet.contains(movie)) {
+                failures.add("'" + prefix + "' filter " + filter + " missed completed movie " + movie);
+            }
+        }
+        for (Movie movie : result) {
+            if (!startedAfter.contains(movie) || !matchesPrefix(movie, prefix) || !matchesFilter(movie, filter)) {
+                failures.add("'" + prefix + "' filter " + filter + " returned unexpected movie " + movie);
+            }
+        }
+    }
+
+    /**
+     * Check one phrase or title start query run during inserts against the bounds given by the sequential model.
+     * Matches must also be ordered on the position where the phrase starts, then on title.
+     */
+    private static void checkPhraseQuery(List<String> phrase, MatchMode mode, MovieFilter filter, List<Movie> result,
+                                         Set<Movie> completedBefore, Set<Movie> startedAfter,
+                                         Queue<String> failures) {
+        MovieCompareOnTitle compareOnTitle = new MovieCompareOnTitle();
+        boolean anchored = mode == MatchMode.TITLE_START;
+        String query = mode + " '" + String.join(" ", phrase) + "' filter " + filter;
+        Set<Movie> resultSet = new HashSet<Movie>(result);
+        if (resultSet.size() != result.size()) {
+            failures.add(query + " returned duplicate movies");
+        }
+        for (int i = 1; i < result.size(); i++) {
+            int compare = Integer.compare(phraseStart(result.get(i - 1), phrase, anchored),
+                    phraseStart(result.get(i), phrase, anchored));
+            if (compare > 0 || (compare == 0 && compareOnTitle.compare(result.get(i - 1), result.get(i)) > 0)) {
+                failures.add(query + " is not sorted on position and title");
+            }
+        }
+        for (Movie movie : completedBefore) {
+            if (phraseStart(movie, phrase, anchored) >= 0 && matchesFilter(movie, filter)
+                    && !resultSet.contains(movie)) {
+                failures.add(query + " missed completed movie " + movie);
+            }
+        }
+        for (Movie movie : result) {
+            if (!startedAfter.contains(movie) || phraseStart(movie, phrase, anchored) < 0
+                    || !matchesFilter(movie, filter)) {
+                failures.add(query + " returned unexpected movie " + movie);
+            }
+        }
+    }
+
+    private static void awaitAll(ExecutorService executorService, List<Future<?>> futures, long seed)
+            throws Exception {
+        executorService.shutdown();
+        Assert.assertTrue("seed " + seed + " timed out", executorService.awaitTermination(60, TimeUnit.SECONDS));
+        // Surface exceptions thrown inside the threads, eg. index out of bounds while walking the trie
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private static Set<Integer> idsInState(AtomicIntegerArray state, int minState) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (int id = 0; id < state.length(); id++) {
+            if (state.get(id) >= minState) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static Set<Movie> moviesInState(AtomicIntegerArray state, int minState, List<Set<Movie>> fileMovies) {
+        Set<Movie> movies = new HashSet<Movie>();
+        for (int id : idsInState(state, minState)) {
+            movies.addAll(fileMovies.get(id));
+        }
+        return movies;
+    }
+
+    /**
+     * Words over a small alphabet so that inserts keep racing on the same trie nodes
+     */
+    private static String randomWord(Random random) {
+        int length = 1 + random.nextInt(4);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(4)));
+        }
+        return word.toString();
+    }
+
+    /**
+     * Titles mix case and punctuation to go through the analyzer, the model strips them again in titleWords
+     */
+    private static String randomTitle(Random random) {
+        int nWords = 1 + random.nextInt(4);
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < nWords; i++) {
+            String word = randomWord(random);
+            if (random.nextInt(4) == 0) {
+                word = word.substring(0, 1).toUpperCase() + word.substring(1);
+            }
+            if (random.nextInt(8) == 0) {
+                word = word + ":";
+            }
+            title.append(i == 0 ? "" : " ").append(word);
+        }
+        return title.toString();
+    }
+
+    private static List<String> titleWords(Movie movie) {
+        List<String> words = new ArrayList<String>();
+        for (String word : movie.getMovieTitle().split(" ")) {
+            words.add(word.replace(":", "").toLowerCase());
+        }
+        return words;
+    }
+
+    private static boolean matchesPrefix(Movie movie, String prefix) {
+        for (String word : titleWords(movie)) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sequential model of a phrase match: every word but the last must equal a title word and the last must be a
+     * prefix of the next title word
+     * @return first position in the title where the phrase matches, -1 if it does not match
+     */
+    private static int phraseStart(Movie movie, List<String> phrase, boolean anchored) {
+        List<String> words = titleWords(movie);
+        int lastStart = anchored ? 0 : words.size() - phrase.size();
+        for (int start = 0; start <= lastStart; start++) {
+            boolean matches = start + phrase.size() <= words.size();
+            for (int i = 0; i < phrase.size() && matches; i++) {
+                String word = words.get(start + i);
+                matches = i < phrase.size() - 1 ? word.equals(phrase.get(i)) : word.startsWith(phrase.get(i));
+            }
+            if (matches) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchesFilter(Movie movie, MovieFilter filter) {
+        return filter == null
+                || (movie.getYearOfRelease() >= filter.getFromYear() && movie.getYearOfRelease() <= filter.getToYear()
+                && (filter.getCountryCode() == null || filter.getCountryCode().equals(movie.getCountryCode())));
+    }
+
+    private static String randomPrefix(Random random) {
+        String word = randomWord(random);
+        return word.substring(0, Math.min(word.length(), random.nextInt(3)));
+    }
+
+    /**
+     * Phrases of two or three words, mostly cut out of a title in the pool so they have matches, with the last word
+     * shortened to a prefix
+     */
+    private static List<String> randomPhrase(Random random, List<Movie> pool, boolean fromStart) {
+        int nWords = 2 + random.nextInt(2);
+        List<String> phrase = new ArrayList<String>();
+        List<String> words = titleWords(pool.get(random.nextInt(pool.size())));
+        if (random.nextInt(4) > 0 && words.size() >= nWords) {
+            int start = fromStart ? 0 : random.nextInt(words.size() - nWords + 1);
+            phrase.addAll(words.subList(start, start + nWords));
+        } else {
+            for (int i = 0; i < nWords; i++) {
+                phrase.add(randomWord(random));
+            }
+        }
+        String last = phrase.get(nWords - 1);
+        phrase.set(nWords - 1, last.substring(0, 1 + random.nextInt(last.length())));
+        return phrase;
+    }
+
+    private static MovieFilter randomFilter(Random random) {
+        int fromYear = 2000 + random.nextInt(20);
+        String countryCode = random.nextBoolean() ? null : COUNTRIES[random.nextInt(COUNTRIES.length)];
+        return new MovieFilter(fromYear, fromYear + random.nextInt(10), countryCode);
+    }
+
+    private static List<String> allPrefixes() {
+        List<String> prefixes = new ArrayList<String>();
+        prefixes.add("");
+        for (char first = 'a'; first < 'e'; first++) {
+            prefixes.add(String.valueOf(first));
+            for (char second = 'a'; second < 'e'; second++) {
+                prefixes.add("" + first + second);
+            }
+        }
+        return prefixes;
+    }
+}
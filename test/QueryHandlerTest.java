@@ -1,7 +1,10 @@
 import com.company.data.AtomicTrie;
+import com.company.data.FieldIndex;
 import com.company.main.InsertHandler;
+import com.company.main.MatchMode;
 import com.company.main.QueryHandler;
 import com.company.model.Movie;
+import com.company.model.MovieFilter;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,6 +21,7 @@ import java.util.List;
 public class QueryHandlerTest {
     private static AtomicTrie trie;
     private static List<Movie> allMovies;
+    private static FieldIndex fieldIndex;
     private static InsertHandler insertHandler;
     private static QueryHandler queryHandler;
 
@@ -25,8 +29,9 @@ public class QueryHandlerTest {
     public void setUp() {
         trie = new AtomicTrie(256);
         allMovies = Collections.synchronizedList(new ArrayList<Movie>());
-        insertHandler = new InsertHandler(trie, allMovies, 100);
-        queryHandler = new QueryHandler(trie, allMovies);
+        fieldIndex = new FieldIndex();
+        insertHandler = new InsertHandler(trie, allMovies, fieldIndex, 100);
+        queryHandler = new QueryHandler(trie, allMovies, fieldIndex);
     }
 
     @Test
@@ -64,9 +69,19 @@ public class QueryHandlerTest {
         list = queryHandler.runQuery("doesnotexist", 0);
         Assert.assertTrue(list.size() == 0);
 
-        // test number prefix
+        // test number prefix, punctuation is stripped so "(2011)" also matches
         list = queryHandler.runQuery("2", 0);
-        Assert.assertTrue(list.size() == 12);
+        Assert.assertTrue(list.size() == 18);
+
+        // test punctuation is stripped from titles and prefixes alike
+        list = queryHandler.runQuery("Ant", 0);
+        Assert.assertTrue(list.size() == 1);
+        list = queryHandler.runQuery("Ant-M", 0);
+        Assert.assertTrue(list.size() == 1);
+        list = queryHandler.runQuery("Wars:", 0);
+        Assert.assertTrue(list.size() == 1);
+        list = queryHandler.runQuery("(2011", 0);
+        Assert.assertTrue(list.size() == 1);
 
         // test special character prefix
         list = queryHandler.runQuery("ö", 0);
@@ -80,4 +95,104 @@ public class QueryHandlerTest {
         list = queryHandler.runQuery("averyveryveryveryverylongrandomstringforprefix", 0);
         Assert.assertTrue(list.size() == 0);
     }
+
+    @Test
+    public void testFilteredQueries() throws IOException {
+        String pathPrefix = new File("").getAbsolutePath();
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/ValidFileBig"));
+
+        // Allow for insert to finish
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        List<Movie> list;
+
+        // test filter matching everything
+        list = queryHandler.runQuery("", new MovieFilter(Integer.MIN_VALUE, Integer.MAX_VALUE, null), 0);
+        Assert.assertTrue(list.size() == 100);
+
+        // test year range
+        list = queryHandler.runQuery("Ci", new MovieFilter(2013, Integer.MAX_VALUE, null), 0);
+        Assert.assertTrue(list.size() == 3);
+        for (Movie movie : list) {
+            Assert.assertTrue(movie.getYearOfRelease() >= 2013);
+        }
+
+        // test country
+        list = queryHandler.runQuery("Ci", new MovieFilter(Integer.MIN_VALUE, Integer.MAX_VALUE, "GH"), 0);
+        Assert.assertTrue(list.size() == 2);
+        Assert.assertTrue(list.get(0).getMovieTitle().equals("Cinderella (2013)"));
+        Assert.assertTrue(list.get(1).getMovieTitle().equals("Cinderella (2014)"));
+
+        // test year range and country together
+        list = queryHandler.runQuery("Transy", new MovieFilter(2006, 2006, "QA"), 0);
+        Assert.assertTrue(list.size() == 15);
+        list = queryHandler.runQuery("Transy", new MovieFilter(2006, 2006, "QA"), 10);
+        Assert.assertTrue(list.size() == 10);
+
+        // test filters not matching anything
+        list = queryHandler.runQuery("Ci", new MovieFilter(2000, 2005, null), 0);
+        Assert.assertTrue(list.size() == 0);
+        list = queryHandler.runQuery("", new MovieFilter(Integer.MIN_VALUE, Integer.MAX_VALUE, "ZZ"), 0);
+        Assert.assertTrue(list.size() == 0);
+        list = queryHandler.runQuery("", new MovieFilter(2010, 2000, null), 0);
+        Assert.assertTrue(list.size() == 0);
+    }
+
+    @Test
+    public void testPhraseQueries() throws IOException {
+        String pathPrefix = new File("").getAbsolutePath();
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/ValidFileBig"));
+
+        // Allow for insert to finish
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        List<Movie> list;
+
+        // test first word must start the title
+        list = queryHandler.runQuery("the", MatchMode.TITLE_START, null, 0);
+        Assert.assertTrue(list.size() == 6);
+        Assert.assertTrue(list.get(0).getMovieTitle().equals("The Martian"));
+        list = queryHandler.runQuery("star", MatchMode.TITLE_START, null, 0);
+        Assert.assertTrue(list.size() == 2);
+        list = queryHandler.runQuery("visit", MatchMode.TITLE_START, null, 0);
+        Assert.assertTrue(list.size() == 0);
+
+        // test matches starting the title are ranked first
+        list = queryHandler.runQuery("the", MatchMode.PHRASE, null, 0);
+        Assert.assertTrue(list.size() == 7);
+        Assert.assertTrue(list.get(list.size()-1).getMovieTitle().equals("Star Wars: The Force Awakens"));
+        list = queryHandler.runQuery("star", MatchMode.PHRASE, null, 0);
+        Assert.assertTrue(list.size() == 3);
+        Assert.assertTrue(list.get(list.size()-1).getMovieTitle().equals("Audi Star Talk"));
+
+        // test words must be adjacent and in order
+        list = queryHandler.runQuery("hotel trans", MatchMode.TITLE_START, null, 0);
+        Assert.assertTrue(list.size() == 79);
+        list = queryHandler.runQuery("transylvania 2", MatchMode.PHRASE, null, 10);
+        Assert.assertTrue(list.size() == 10);
+        Assert.assertTrue(list.get(0).getMovieTitle().equals("Hotel Transylvania 2"));
+        list = queryHandler.runQuery("wars the f", MatchMode.PHRASE, null, 0);
+        Assert.assertTrue(list.size() == 1);
+        list = queryHandler.runQuery("the wars", MatchMode.PHRASE, null, 0);
+        Assert.assertTrue(list.size() == 0);
+        list = queryHandler.runQuery("hotel 2", MatchMode.PHRASE, null, 0);
+        Assert.assertTrue(list.size() == 0);
+
+        // test phrase with filter
+        list = queryHandler.runQuery("the visit", MatchMode.TITLE_START, new MovieFilter(2008, 2009, null), 0);
+        Assert.assertTrue(list.size() == 2);
+        Assert.assertTrue(list.get(0).getMovieTitle().equals("The Visit A"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFilterWithoutIndex() {
+        QueryHandler handler = new QueryHandler(trie, allMovies);
+        handler.runQuery("", new MovieFilter(2000, 2010, "US"), 0);
+    }
 }
@@ -0,0 +1,221 @@
+import com.company.data.AtomicTrie;
+import com.company.data.FieldIndex;
+import com.company.main.InsertHandler;
+import com.company.main.MatchMode;
+import com.company.main.QueryHandler;
+import com.company.model.Movie;
+import com.company.model.MovieFilter;
+import com.company.replication.ChangeBatch;
+import com.company.replication.ReplicationFollower;
+import com.company.replication.ReplicationLeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for replication from a leader to read replicas
+ */
+public class ReplicationTest {
+    private static List<Movie> allMovies;
+    private static InsertHandler insertHandler;
+    private static ReplicationLeader leader;
+
+    @Before
+    public void setUp() throws IOException {
+        allMovies = Collections.synchronizedList(new ArrayList<Movie>());
+        insertHandler = new InsertHandler(new AtomicTrie(256), allMovies, new FieldIndex(), 100);
+        leader = new ReplicationLeader(allMovies, 0);
+        insertHandler.setChangeListener(leader);
+        leader.start();
+    }
+
+    @After
+    public void tearDown() {
+        leader.shutDown();
+        insertHandler.shutDown();
+    }
+
+    @Test
+    public void testSnapshotAndStream() throws IOException, InterruptedException {
+        String pathPrefix = new File("").getAbsolutePath();
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/ValidFileBig"));
+        Thread.sleep(1000);
+        Assert.assertTrue(leader.getSequence() == 1);
+
+        // A follower joining late gets the movies through the snapshot
+        List<Movie> followerMovies = Collections.synchronizedList(new ArrayList<Movie>());
+        FieldIndex followerIndex = new FieldIndex();
+        AtomicTrie followerTrie = new AtomicTrie(256);
+        InsertHandler followerInsertHandler = new InsertHandler(followerTrie, followerMovies, followerIndex, 10);
+        QueryHandler followerQueryHandler = new QueryHandler(followerTrie, followerMovies, followerIndex);
+        ReplicationFollower follower = new ReplicationFollower(followerInsertHandler, leader.getPort());
+        follower.start();
+
+        Assert.assertTrue(follower.awaitSequence(1, 5000));
+        Assert.assertTrue(followerQueryHandler.runQuery("", 0).size() == 100);
+        Assert.assertTrue(leader.getFollowerCount() == 1);
+
+        // Later batches are streamed in order
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/InvalidCharacterFile"));
+        Thread.sleep(500);
+        Assert.assertTrue(leader.getSequence() == 2);
+        Assert.assertTrue(follower.awaitSequence(2, 5000));
+        Assert.assertTrue(follower.getAppliedSequence() == 2);
+        Assert.assertTrue(followerQueryHandler.runQuery("", 0).size() == 101);
+
+        // Field indexes and phrase queries work on the replica
+        List<Movie> list = followerQueryHandler.runQuery("ci", MatchMode.TITLE_START,
+                new MovieFilter(Integer.MIN_VALUE, Integer.MAX_VALUE, "GH"), 0);
+        Assert.assertTrue(list.size() == 2);
+
+        // Movies already on the leader are not published again
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/ValidFile"));
+        Thread.sleep(500);
+        Assert.assertTrue(leader.getSequence() == 2);
+
+        // Heartbeats keep the follower connected and the lag updated
+        Thread.sleep(1500);
+        Assert.assertTrue(follower.isConnected());
+        Assert.assertTrue(follower.getAppliedSequence() == 2);
+        Assert.assertTrue(follower.getLagMillis() >= 0);
+
+        follower.shutDown();
+        followerInsertHandler.shutDown();
+    }
+
+    /**
+     * Titles longer than 64 KB once encoded must survive the wire format, or followers could never bootstrap
+     */
+    @Test
+    public void testLongTitleRoundTrip() throws IOException {
+        StringBuilder longTitle = new StringBuilder();
+        while (longTitle.length() < 70000) {
+            longTitle.append("Long title \u00e9\u4e2d ");
+        }
+        List<Movie> movies = new ArrayList<Movie>();
+        movies.add(new Movie(2001, "US", longTitle.toString()));
+        movies.add(new Movie(2002, "FR", "Short title"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        new ChangeBatch(ChangeBatch.SNAPSHOT, 7, 1234, movies).writeTo(out);
+        out.flush();
+        Assert.assertTrue(bytes.size() > 65535);
+
+        ChangeBatch batch = ChangeBatch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertTrue(batch.getType() == ChangeBatch.SNAPSHOT);
+        Assert.assertTrue(batch.getSequence() == 7);
+        Assert.assertTrue(batch.getTimestamp() == 1234);
+        Assert.assertEquals(movies, batch.getMovies());
+        Assert.assertEquals(longTitle.toString(), batch.getMovies().get(0).getMovieTitle());
+    }
+
+    /**
+     * This test connects a follower which never reads. Ingest on the leader must not block on it.
+     */
+    @Test
+    public void testFollowerNotReading() throws Exception {
+        Socket idleFollower = new Socket(InetAddress.getLoopbackAddress(), leader.getPort());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (leader.getFollowerCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(leader.getFollowerCount() == 1);
+
+        // Publish far more than the socket buffers and the follower queue can hold
+        StringBuilder longTitle = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            longTitle.append("padding ");
+        }
+        int nBatches = 20000;
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<?> ingest = executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < nBatches; i++) {
+                    List<Movie> batch = new ArrayList<Movie>();
+                    for (int j = 0; j < 10; j++) {
+                        batch.add(new Movie(2000, "US", longTitle.toString() + i + " " + j));
+                    }
+                    leader.moviesAdded(batch);
+                }
+            }
+        });
+        ingest.get(20, TimeUnit.SECONDS);
+        executorService.shutdown();
+        Assert.assertTrue(leader.getSequence() == nBatches);
+
+        // The follower which fell behind is disconnected
+        deadline = System.currentTimeMillis() + 5000;
+        while (leader.getFollowerCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(leader.getFollowerCount() == 0);
+        idleFollower.close();
+    }
+
+    /**
+     * This test runs a follower in a separate JVM and drives it through its command line.
+     */
+    @Test
+    public void testFollowerProcess() throws IOException, InterruptedException {
+        String pathPrefix = new File("").getAbsolutePath();
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/ValidFileBig"));
+        Thread.sleep(1000);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "com.company.main.TypeAhead", "follower", String.valueOf(leader.getPort()));
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        PrintWriter commands = new PrintWriter(process.getOutputStream(), true);
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        Assert.assertTrue(output.readLine().startsWith("Replication follower connected"));
+
+        insertHandler.processNewFile(pathPrefix.concat("/test/resources/InvalidCharacterFile"));
+        Thread.sleep(500);
+
+        // Wait for the follower to catch up with the leader
+        String expected = "follower sequence=" + leader.getSequence();
+        boolean caughtUp = false;
+        for (int i = 0; i < 50 && !caughtUp; i++) {
+            commands.println("replication-status");
+            caughtUp = output.readLine().startsWith(expected);
+            if (!caughtUp) {
+                Thread.sleep(100);
+            }
+        }
+        Assert.assertTrue(caughtUp);
+
+        commands.println("query-phrase valid char");
+        commands.println("quit");
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = output.readLine()) != null) {
+            lines.add(line);
+        }
+        Assert.assertTrue(process.waitFor() == 0);
+        // The follower reports the invalid character while applying the batch too, only the query result is checked
+        Assert.assertTrue(lines.get(lines.size() - 1).startsWith("2008\tAB\tThis is not a valid character"));
+    }
+}